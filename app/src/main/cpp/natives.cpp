@@ -17,111 +17,232 @@
 // along with this program.  If not, see <https://www.gnu.org/licenses/>.
 
 #include <jni.h>
+#include <stddef.h>
+#include <stdint.h>
 
-#include <codecvt>
-#include <locale>
-#include <string>
-#include <utility>
+#include <memory>
 #include <vector>
 
-static inline int CodePointSize(jbyte* bytes, int pos, int len) {
-    if ((bytes[pos] & 0x80) == 0)
-        return 1;
-
-    int cp_length;
-    if ((bytes[pos] & 0xf8) == 0xf0) {
-        cp_length = 4;
-    } else if ((bytes[pos] & 0xf0) == 0xe0) {
-        cp_length = 3;
-    } else if ((bytes[pos] & 0xe0) == 0xc0) {
-        cp_length = 2;
-    } else {
-        return -1;
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+# include <arm_neon.h>
+# define USE_NEON
+#elif defined(__SSE2__)
+# include <emmintrin.h>
+# define USE_SSE2
+#endif
+
+namespace {
+
+static const jchar kReplacementChar = 0xfffd;
+static const uint8_t kInvalidLead = 0xff;
+
+// For each lead byte: how many continuation bytes follow it, and the range the first of them
+// must fall in. The narrower ranges rule out overlong forms, surrogates, and anything above
+// U+10FFFF; later continuation bytes are always 80..BF.
+struct LeadInfo {
+    uint8_t need;
+    uint8_t lo;
+    uint8_t hi;
+};
+
+constexpr LeadInfo ClassifyLead(unsigned b) {
+    return b < 0x80 ? LeadInfo{0, 0, 0}
+         : b < 0xc2 ? LeadInfo{kInvalidLead, 0, 0}
+         : b < 0xe0 ? LeadInfo{1, 0x80, 0xbf}
+         : b == 0xe0 ? LeadInfo{2, 0xa0, 0xbf}
+         : b == 0xed ? LeadInfo{2, 0x80, 0x9f}
+         : b < 0xf0 ? LeadInfo{2, 0x80, 0xbf}
+         : b == 0xf0 ? LeadInfo{3, 0x90, 0xbf}
+         : b < 0xf4 ? LeadInfo{3, 0x80, 0xbf}
+         : b == 0xf4 ? LeadInfo{3, 0x80, 0x8f}
+         : LeadInfo{kInvalidLead, 0, 0};
+}
+
+struct LeadTable {
+    LeadInfo entries[256];
+
+    constexpr LeadTable() : entries() {
+        for (unsigned i = 0; i < 256; i++)
+            entries[i] = ClassifyLead(i);
     }
-    if (pos + cp_length > len)
-        return -1;
+};
 
-    for (int i = 1; i < cp_length; i++) {
-        if ((bytes[pos + i] & 0xc0) != 0x80)
-            return -1;
+static constexpr LeadTable kLeads;
+
+// Widen whole 16-byte blocks of ASCII, stopping at the first block with a high bit set.
+// Returns how many bytes were copied.
+static inline size_t CopyAsciiBlocks(const uint8_t* in, size_t len, jchar* out) {
+    size_t i = 0;
+#if defined(USE_NEON)
+    for (; i + 16 <= len; i += 16) {
+        uint8x16_t v = vld1q_u8(in + i);
+# if defined(__aarch64__)
+        if (vmaxvq_u8(v) >= 0x80)
+            break;
+# else
+        uint8x8_t folded = vorr_u8(vget_low_u8(v), vget_high_u8(v));
+        if (vget_lane_u64(vreinterpret_u64_u8(vand_u8(folded, vdup_n_u8(0x80))), 0))
+            break;
+# endif
+        vst1q_u16(reinterpret_cast<uint16_t*>(out + i), vmovl_u8(vget_low_u8(v)));
+        vst1q_u16(reinterpret_cast<uint16_t*>(out + i + 8), vmovl_u8(vget_high_u8(v)));
+    }
+#elif defined(USE_SSE2)
+    const __m128i zero = _mm_setzero_si128();
+    for (; i + 16 <= len; i += 16) {
+        __m128i v = _mm_loadu_si128(reinterpret_cast<const __m128i*>(in + i));
+        if (_mm_movemask_epi8(v))
+            break;
+        _mm_storeu_si128(reinterpret_cast<__m128i*>(out + i), _mm_unpacklo_epi8(v, zero));
+        _mm_storeu_si128(reinterpret_cast<__m128i*>(out + i + 8), _mm_unpackhi_epi8(v, zero));
     }
-    return cp_length;
+#endif
+    return i;
 }
 
-class Utf16Cvt : public std::codecvt<char16_t, char, std::mbstate_t>
-{
-  public:
-    ~Utf16Cvt() {}
-};
+// Decodes |len| bytes into |out|, which must have room for |len| chars; no sequence decodes to
+// more UTF-16 units than it has bytes. Each maximal ill-formed subsequence becomes one U+FFFD,
+// which is what JavaTextHelpers does too. Returns the number of chars written.
+static size_t DecodeUtf8(const uint8_t* in, size_t len, jchar* out) {
+    size_t i = 0;
+    size_t n = 0;
+    while (i < len) {
+        if (in[i] < 0x80) {
+            size_t run = CopyAsciiBlocks(in + i, len - i, out + n);
+            i += run;
+            n += run;
+
+            // Whatever is left of the block that stopped the fast path, or the tail.
+            while (i < len && in[i] < 0x80)
+                out[n++] = in[i++];
+            continue;
+        }
+
+        const LeadInfo& lead = kLeads.entries[in[i]];
+        if (lead.need == kInvalidLead) {
+            out[n++] = kReplacementChar;
+            i++;
+            continue;
+        }
+
+        uint32_t cp = in[i] & (0x3f >> lead.need);
+        uint8_t lo = lead.lo;
+        uint8_t hi = lead.hi;
+        size_t j = i + 1;
+        bool ok = true;
+        for (unsigned k = 0; k < lead.need; k++) {
+            if (j >= len || in[j] < lo || in[j] > hi) {
+                ok = false;
+                break;
+            }
+            cp = (cp << 6) | (in[j] & 0x3f);
+            lo = 0x80;
+            hi = 0xbf;
+            j++;
+        }
+        i = j;
+
+        if (!ok) {
+            out[n++] = kReplacementChar;
+        } else if (cp >= 0x10000) {
+            cp -= 0x10000;
+            out[n++] = static_cast<jchar>(0xd800 + (cp >> 10));
+            out[n++] = static_cast<jchar>(0xdc00 + (cp & 0x3ff));
+        } else {
+            out[n++] = static_cast<jchar>(cp);
+        }
+    }
+    return n;
+}
+
+} // namespace
 
 extern "C" jstring
-Java_net_alliedmods_stocks_Utilities_fastDecodeUtf8(
+Java_net_alliedmods_stocks_NativeTextHelpers_fastDecodeUtf8(
         JNIEnv* env,
         jclass type,
         jbyteArray byteArray)
 {
     jsize len = env->GetArrayLength(byteArray);
-    jbyte* bytes = env->GetByteArrayElements(byteArray, nullptr);
+    std::unique_ptr<jchar[]> chars(new jchar[len > 0 ? len : 1]);
 
-    std::vector<jchar> chars;
-    chars.reserve(len);
+    // No JNI calls are allowed while the array is pinned, so the string is only created once
+    // it has been released.
+    void* bytes = env->GetPrimitiveArrayCritical(byteArray, nullptr);
+    if (!bytes)
+        return nullptr;
+    size_t n = DecodeUtf8(reinterpret_cast<const uint8_t*>(bytes), len, chars.get());
+    env->ReleasePrimitiveArrayCritical(byteArray, bytes, JNI_ABORT);
 
-    std::wstring_convert<Utf16Cvt, char16_t> conv16("utf-8 error", {});
+    return env->NewString(chars.get(), n);
+}
 
-    jsize i = 0;
-    while (i < len) {
-        if ((bytes[i] & 0x80) != 0x80) {
-            chars.emplace_back(bytes[i++]);
-        } else {
-            int cp_length = CodePointSize(bytes, i, len);
-            auto str = conv16.from_bytes(
-                    reinterpret_cast<char*>(bytes),
-                    reinterpret_cast<char*>(bytes + cp_length));
-            for (const auto& c : str)
-                chars.emplace_back(c);
-        }
+extern "C" jint
+Java_net_alliedmods_stocks_NativeTextHelpers_fastDecodeUtf8Into(
+        JNIEnv* env,
+        jclass type,
+        jbyteArray byteArray,
+        jcharArray charArray)
+{
+    jsize len = env->GetArrayLength(byteArray);
+    if (env->GetArrayLength(charArray) < len) {
+        jclass ex = env->FindClass("java/lang/IllegalArgumentException");
+        env->ThrowNew(ex, "output array is too small");
+        return 0;
     }
-    env->ReleaseByteArrayElements(byteArray, bytes, JNI_ABORT);
 
-    return env->NewString(chars.data(), chars.size());
+    void* bytes = env->GetPrimitiveArrayCritical(byteArray, nullptr);
+    if (!bytes)
+        return 0;
+    void* chars = env->GetPrimitiveArrayCritical(charArray, nullptr);
+    if (!chars) {
+        env->ReleasePrimitiveArrayCritical(byteArray, bytes, JNI_ABORT);
+        return 0;
+    }
+    size_t n = DecodeUtf8(reinterpret_cast<const uint8_t*>(bytes), len,
+                          reinterpret_cast<jchar*>(chars));
+    env->ReleasePrimitiveArrayCritical(charArray, chars, 0);
+    env->ReleasePrimitiveArrayCritical(byteArray, bytes, JNI_ABORT);
+    return static_cast<jint>(n);
 }
 
-extern "C" jobjectArray
-Java_net_alliedmods_stocks_Utilities_fastSplitLines(
+extern "C" jintArray
+Java_net_alliedmods_stocks_NativeTextHelpers_fastIndexLines(
         JNIEnv* env,
         jclass type,
-        jstring text)
+        jcharArray charArray,
+        jint length)
 {
-    jsize len = env->GetStringLength(text);
-    const jchar* chars = env->GetStringChars(text, nullptr);
-
-    std::vector<std::pair<size_t, size_t>> extents;
-
-    std::u16string_view cv(reinterpret_cast<const char16_t*>(chars), len);
-    size_t last_pos = std::string::npos;
-    for (size_t i = 0; i < cv.size(); i++) {
-        if (cv[i] == '\r' || cv[i] == '\n') {
-            if (last_pos != std::string::npos) {
-                extents.emplace_back(std::make_pair(last_pos, i));
-                last_pos = std::string::npos;
+    std::vector<jint> bounds;
+
+    void* ptr = env->GetPrimitiveArrayCritical(charArray, nullptr);
+    if (!ptr)
+        return nullptr;
+    const jchar* chars = reinterpret_cast<const jchar*>(ptr);
+    jint last_pos = -1;
+    for (jint i = 0; i < length; i++) {
+        if (chars[i] == '\r' || chars[i] == '\n') {
+            if (last_pos != -1) {
+                bounds.push_back(last_pos);
+                bounds.push_back(i);
+                last_pos = -1;
             }
             continue;
         }
 
-        if (last_pos == std::string::npos)
+        if (last_pos == -1)
             last_pos = i;
     }
-    if (last_pos != std::string::npos)
-        extents.emplace_back(std::make_pair(last_pos, cv.size()));
+    env->ReleasePrimitiveArrayCritical(charArray, ptr, JNI_ABORT);
 
-    jclass stringClass = env->FindClass("java/lang/String");
-    jobjectArray array = env->NewObjectArray(extents.size(), stringClass, nullptr);
-    for (size_t i = 0; i < extents.size(); i++) {
-        const auto& extent = extents[i];
-
-        jstring line = env->NewString(chars + extent.first, extent.second - extent.first);
-        env->SetObjectArrayElement(array, i, line);
-        env->DeleteLocalRef(line);
+    if (last_pos != -1) {
+        bounds.push_back(last_pos);
+        bounds.push_back(length);
     }
+
+    jintArray array = env->NewIntArray(bounds.size());
+    if (!array)
+        return nullptr;
+    env->SetIntArrayRegion(array, 0, bounds.size(), bounds.data());
     return array;
 }
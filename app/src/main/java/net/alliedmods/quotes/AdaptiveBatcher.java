@@ -0,0 +1,143 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.quotes;
+
+import java.io.EOFException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Tunes batch size and concurrency per provider from observed responses. The provider's
+// getBatchSize() is only the starting point; getMaxBatchSize() is the hard ceiling. State is
+// kept per provider name, so it carries over between QuoteFetcher instances.
+public class AdaptiveBatcher {
+    private static final long FAST_RESPONSE_MS = 1500;
+    private static final long SLOW_RESPONSE_MS = 6000;
+    private static final int MAX_CONCURRENCY = 4;
+
+    // Keep the comma-joined symbols parameter well under common URL length limits.
+    private static final int MAX_SYMBOLS_PARAM_LENGTH = 1500;
+
+    private static final Map<String, AdaptiveBatcher> Batchers =
+            new HashMap<String, AdaptiveBatcher>();
+
+    private int batch_size_;
+    private int ceiling_;
+    private int concurrency_ = MAX_CONCURRENCY;
+
+    private AdaptiveBatcher(IQuoteService service) {
+        ceiling_ = Math.max(service.getMaxBatchSize(), 1);
+        batch_size_ = Math.min(Math.max(service.getBatchSize(), 1), ceiling_);
+    }
+
+    public static AdaptiveBatcher forService(IQuoteService service) {
+        synchronized (Batchers) {
+            AdaptiveBatcher batcher = Batchers.get(service.getName());
+            if (batcher == null) {
+                batcher = new AdaptiveBatcher(service);
+                Batchers.put(service.getName(), batcher);
+            }
+            return batcher;
+        }
+    }
+
+    public synchronized int getBatchSize() {
+        return batch_size_;
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency_;
+    }
+
+    public synchronized List<List<QuoteRequest>> split(List<QuoteRequest> requests) {
+        List<List<QuoteRequest>> batches = new ArrayList<List<QuoteRequest>>();
+        int start = 0;
+        int param_length = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            int length = requests.get(i).symbol.length() + (i > start ? 1 : 0);
+            if (i > start &&
+                (i - start >= batch_size_ || param_length + length > MAX_SYMBOLS_PARAM_LENGTH))
+            {
+                batches.add(requests.subList(start, i));
+                start = i;
+                param_length = 0;
+                length = requests.get(i).symbol.length();
+            }
+            param_length += length;
+        }
+        if (start < requests.size())
+            batches.add(requests.subList(start, requests.size()));
+        return batches;
+    }
+
+    public synchronized void recordSuccess(int batch_count, long elapsed_ms) {
+        if (elapsed_ms > SLOW_RESPONSE_MS) {
+            batch_size_ = Math.max(1, batch_size_ * 3 / 4);
+            return;
+        }
+
+        concurrency_ = Math.min(MAX_CONCURRENCY, concurrency_ + 1);
+
+        // Only grow if this batch was actually full; a short tail batch says nothing about
+        // how the provider handles larger ones.
+        if (elapsed_ms < FAST_RESPONSE_MS && batch_count >= batch_size_)
+            batch_size_ = Math.min(ceiling_, batch_size_ + Math.max(1, batch_size_ / 2));
+    }
+
+    public synchronized void recordFailure(int batch_count, Exception e) {
+        if (e instanceof RateLimitedException) {
+            concurrency_ = Math.max(1, concurrency_ / 2);
+            return;
+        }
+        if (e instanceof HttpCodeException) {
+            int code = ((HttpCodeException)e).code();
+            if (code == 413 || code == 414 || code == 431) {
+                // The request was too large; never go this big again.
+                ceiling_ = Math.max(1, Math.min(ceiling_, batch_count / 2));
+                batch_size_ = Math.min(batch_size_, ceiling_);
+                return;
+            }
+            if (code == 429 || code == 503) {
+                concurrency_ = Math.max(1, concurrency_ / 2);
+                return;
+            }
+            // Anything else, such as a bad API key or a server fault, has nothing to do with
+            // how big the batch was.
+            return;
+        }
+        if (isTransportFailure(e)) {
+            // Timeouts and dropped connections: try smaller requests.
+            batch_size_ = Math.max(1, Math.min(batch_size_, batch_count) / 2);
+        }
+    }
+
+    // Failures partway through a request, which a smaller one might avoid. Not being able to
+    // connect at all isn't one of them.
+    private static boolean isTransportFailure(Exception e) {
+        if (e instanceof SocketTimeoutException || e instanceof EOFException)
+            return true;
+        return e instanceof SocketException &&
+               !(e instanceof ConnectException) &&
+               !(e instanceof NoRouteToHostException);
+    }
+}
@@ -19,6 +19,7 @@ package net.alliedmods.quotes;
 
 import android.util.Log;
 
+import net.alliedmods.stocks.HttpCache;
 import net.alliedmods.stocks.UrlBuilder;
 
 import org.json.JSONArray;
@@ -26,17 +27,26 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.List;
 
 public class AlphaVantage implements IQuoteService {
     private static String TAG = "AlphaVantage";
     private static String BASE_URL = "https://www.alphavantage.co/query";
 
+    // Search results change rarely, so serve them from disk for a day. This
+    // also covers company name lookups, which go through search.
+    private static final long SEARCH_TTL_MS = 24 * 60 * 60 * 1000;
+
     private String api_key_;
+    private QuotaGovernor governor_;
 
-    public AlphaVantage(String api_key) {
+    // Batches are charged by the fetcher. Searches are extra requests against the same
+    // budget, so they're charged here.
+    public AlphaVantage(String api_key, QuotaGovernor governor) {
         api_key_ = api_key;
+        governor_ = governor;
+
+        HttpCache.setPolicy(BASE_URL + "?function=SYMBOL_SEARCH", SEARCH_TTL_MS);
     }
 
     @Override
@@ -47,6 +57,27 @@ public class AlphaVantage implements IQuoteService {
         return 1;
     }
 
+    @Override
+    public int getMaxBatchSize() {
+        return 1;
+    }
+
+    @Override
+    public int getRequestsPerMinute() {
+        // The free tier allows 5 requests per minute.
+        return 5;
+    }
+
+    @Override
+    public int getRequestsPerDay() {
+        return 0;
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
     @Override
     public SymbolSuggestion[] suggestSymbols(String prefix) {
         try {
@@ -68,22 +99,24 @@ public class AlphaVantage implements IQuoteService {
     }
 
     @Override
-    public List<QuoteResult> query(List<QuoteRequest> requests) throws Exception {
-        ArrayList<QuoteResult> results = new ArrayList<QuoteResult>();
+    public void query(List<QuoteRequest> requests, IQuoteSink sink) throws Exception {
         for (QuoteRequest request : requests) {
             QuoteResult result;
             try {
                 result = query(request.symbol);
+            } catch (RateLimitedException e) {
+                // Fail the whole batch so the fetcher can retry it in the next window.
+                throw e;
             } catch (Exception e) {
                 result = new QuoteResult();
                 result.success = false;
+                result.symbol = request.symbol;
                 result.error = e.getMessage();
             }
             if (result.success && request.fetchName)
                 result.companyName = findCompanyName(result.symbol);
-            results.add(result);
+            sink.onQuote(result);
         }
-        return results;
     }
 
     private QuoteResult query(String symbol) throws Exception {
@@ -107,8 +140,8 @@ public class AlphaVantage implements IQuoteService {
         if (!object.has("Global Quote")) {
             if (!object.has("Note"))
                 throw new Exception("Unexpected object format");
-            result.error = object.getString("Note");
-            return result;
+            // This is the throttling message.
+            throw new RateLimitedException(object.getString("Note"));
         }
         JSONObject quote = object.getJSONObject("Global Quote");
         if (!quote.getString("01. symbol").equals(result.symbol)) {
@@ -144,6 +177,15 @@ public class AlphaVantage implements IQuoteService {
         builder.addParam("keywords", keyword);
         builder.addParam("apikey", api_key_);
         URL url = builder.getUrl();
+
+        // Answers served from the cache don't cost a request.
+        HttpCache cache = HttpCache.get();
+        HttpCache.Entry entry = cache != null ? cache.lookup(url) : null;
+        if (entry == null || !entry.isFresh()) {
+            governor_.charge(this);
+            governor_.save();
+        }
+
         JSONObject object = UrlBuilder.downloadUrlAsJson(url);
         if (!object.has("bestMatches")) {
             String error = object.has("Information")
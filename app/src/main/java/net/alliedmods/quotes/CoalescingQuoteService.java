@@ -0,0 +1,183 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.quotes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+
+// Wraps a quote service so that identical requests in flight at the same time, from any
+// instance of the same provider, share a single upstream call. Quote requests are coalesced per
+// symbol, and searches per prefix.
+public class CoalescingQuoteService implements IQuoteService
+{
+    private static final SingleFlight<QuoteResult> QuoteFlights =
+            new SingleFlight<QuoteResult>();
+    private static final SingleFlight<SymbolSuggestion[]> SearchFlights =
+            new SingleFlight<SymbolSuggestion[]>();
+
+    private IQuoteService service_;
+
+    public CoalescingQuoteService(IQuoteService service) {
+        service_ = service;
+    }
+
+    @Override
+    public void query(List<QuoteRequest> requests, final IQuoteSink sink) throws Exception {
+        final List<QuoteRequest> leading = new ArrayList<QuoteRequest>();
+        final List<SingleFlight.Call<QuoteResult>> leading_calls =
+                new ArrayList<SingleFlight.Call<QuoteResult>>();
+        List<QuoteRequest> waiting = new ArrayList<QuoteRequest>();
+        List<SingleFlight.Call<QuoteResult>> waiting_calls =
+                new ArrayList<SingleFlight.Call<QuoteResult>>();
+
+        for (QuoteRequest request : requests) {
+            SingleFlight.Call<QuoteResult> call = QuoteFlights.begin(getQuoteKey(request));
+            if (call.isLeader()) {
+                leading.add(request);
+                leading_calls.add(call);
+            } else {
+                waiting.add(request);
+                waiting_calls.add(call);
+            }
+        }
+
+        if (!leading.isEmpty()) {
+            // Hand each result to whoever else is waiting on that symbol as soon as it arrives.
+            final boolean[] completed = new boolean[leading.size()];
+            IQuoteSink fan_out = new IQuoteSink() {
+                @Override
+                public void onQuote(QuoteResult result) {
+                    for (int i = 0; i < leading.size(); i++) {
+                        if (completed[i] ||
+                            !leading.get(i).symbol.equalsIgnoreCase(result.symbol))
+                        {
+                            continue;
+                        }
+                        completed[i] = true;
+                        QuoteFlights.complete(leading_calls.get(i), result);
+                        break;
+                    }
+                    sink.onQuote(result);
+                }
+            };
+
+            try {
+                service_.query(leading, fan_out);
+            } catch (Exception e) {
+                for (int i = 0; i < leading.size(); i++) {
+                    if (!completed[i])
+                        QuoteFlights.fail(leading_calls.get(i), e);
+                }
+                throw e;
+            }
+
+            // Anything the provider didn't return completes as null.
+            for (int i = 0; i < leading.size(); i++) {
+                if (!completed[i])
+                    QuoteFlights.complete(leading_calls.get(i), null);
+            }
+        }
+
+        // One deadline covers all of this batch's waits.
+        long deadline = System.currentTimeMillis() + SingleFlight.MAX_WAIT_MS;
+        List<QuoteRequest> timed_out = new ArrayList<QuoteRequest>();
+        for (int i = 0; i < waiting.size(); i++) {
+            QuoteResult result;
+            try {
+                long timeout = Math.max(0, deadline - System.currentTimeMillis());
+                result = QuoteFlights.await(waiting_calls.get(i), timeout);
+            } catch (TimeoutException e) {
+                timed_out.add(waiting.get(i));
+                continue;
+            } catch (Exception e) {
+                // A throttle applies to us too. Rethrow it, so the fetcher waits and retries
+                // these symbols instead of counting them as fetched.
+                if (e instanceof InterruptedException || QuoteFetcher.isThrottled(e))
+                    throw e;
+                result = new QuoteResult();
+                result.success = false;
+                result.symbol = waiting.get(i).symbol;
+                result.error = e.getMessage();
+            }
+            if (result != null)
+                sink.onQuote(result);
+        }
+
+        // The leader is stuck; fetch these ourselves.
+        if (!timed_out.isEmpty())
+            service_.query(timed_out, sink);
+    }
+
+    @Override
+    public SymbolSuggestion[] suggestSymbols(final String prefix) {
+        try {
+            return SearchFlights.run(service_.getName() + ":" + prefix,
+                    new Callable<SymbolSuggestion[]>() {
+                        @Override
+                        public SymbolSuggestion[] call() {
+                            return service_.suggestSymbols(prefix);
+                        }
+                    });
+        } catch (Exception e) {
+            return new SymbolSuggestion[0];
+        }
+    }
+
+    // A request that also wants the company name can't be satisfied by one that doesn't.
+    private String getQuoteKey(QuoteRequest request) {
+        String key = service_.getName() + ":" + request.symbol;
+        return request.fetchName ? key + ":name" : key;
+    }
+
+    @Override
+    public void shutdown() {
+        service_.shutdown();
+    }
+
+    @Override
+    public String getName() {
+        return service_.getName();
+    }
+
+    @Override
+    public int getBatchSize() {
+        return service_.getBatchSize();
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return service_.getMaxBatchSize();
+    }
+
+    @Override
+    public int getRequestsPerMinute() {
+        return service_.getRequestsPerMinute();
+    }
+
+    @Override
+    public int getRequestsPerDay() {
+        return service_.getRequestsPerDay();
+    }
+
+    @Override
+    public void prefetchSearchData() throws InterruptedException {
+        service_.prefetchSearchData();
+    }
+}
@@ -0,0 +1,246 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.quotes;
+
+import android.util.Log;
+
+import net.alliedmods.stocks.IThread;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A long-lived set of worker threads shared by every QuoteFetcher. Batches are queued by
+// priority, and each provider may only occupy a bounded number of workers at once. A batch may
+// also carry a Throttle, which can hold it in the queue until a rate limit allows it. Cancelling
+// a TaskToken drops only that token's batches; the workers stay warm for the next refresh.
+public class FetchScheduler {
+    private static final String TAG = "FetchScheduler";
+
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+
+    private static final int MAX_WORKERS = 4;
+    private static final int DEFAULT_LANE_LIMIT = 4;
+    private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    public interface Throttle {
+        // Return 0 if the batch may run now, or the number of milliseconds to wait.
+        public long acquire();
+    }
+
+    private static class Batch {
+        final TaskToken token;
+        final String provider;
+        final int priority;
+        final long sequence;
+        final Throttle throttle;
+        final Runnable work;
+
+        Batch(TaskToken token, String provider, int priority, long sequence, Throttle throttle,
+              Runnable work)
+        {
+            this.token = token;
+            this.provider = provider;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.throttle = throttle;
+            this.work = work;
+        }
+    }
+
+    private final Lock lock_ = new ReentrantLock();
+    private final Condition cv_ = lock_.newCondition();
+    private final TreeSet<Batch> queue_ = new TreeSet<Batch>(new Comparator<Batch>() {
+        @Override
+        public int compare(Batch a, Batch b) {
+            if (a.priority != b.priority)
+                return Integer.compare(a.priority, b.priority);
+            return Long.compare(a.sequence, b.sequence);
+        }
+    });
+    private final Map<String, Integer> lane_limits_ = new HashMap<String, Integer>();
+    private final Map<String, Integer> lane_active_ = new HashMap<String, Integer>();
+    private final List<Worker> workers_ = new ArrayList<Worker>();
+    private int idle_workers_ = 0;
+    private long sequence_ = 0;
+
+    // When a throttled batch may next be ready, or 0 if nothing is throttled.
+    private long wake_at_ = 0;
+
+    public void setLaneLimit(String provider, int limit) {
+        lock_.lock();
+        try {
+            lane_limits_.put(provider, Math.max(limit, 1));
+            cv_.signalAll();
+        } finally {
+            lock_.unlock();
+        }
+    }
+
+    public void submit(TaskToken token, String provider, int priority, Runnable work) {
+        submit(token, provider, priority, null, work);
+    }
+
+    public void submit(TaskToken token, String provider, int priority, Throttle throttle,
+                       Runnable work)
+    {
+        lock_.lock();
+        try {
+            queue_.add(new Batch(token, provider, priority, sequence_++, throttle, work));
+            // One more worker for each batch that no idle worker is free to take.
+            if (queue_.size() > idle_workers_ && workers_.size() < MAX_WORKERS) {
+                Worker worker = new Worker();
+                workers_.add(worker);
+                worker.thread.start();
+            }
+            cv_.signalAll();
+        } finally {
+            lock_.unlock();
+        }
+    }
+
+    // Drop any queued batches for this token, and abort the ones that are already running.
+    public void cancel(TaskToken token) {
+        lock_.lock();
+        try {
+            Iterator<Batch> iter = queue_.iterator();
+            while (iter.hasNext()) {
+                if (iter.next().token == token)
+                    iter.remove();
+            }
+            for (Worker worker : workers_) {
+                if (worker.current != null && worker.current.token == token)
+                    IThread.cancelThread(worker.thread);
+            }
+        } finally {
+            lock_.unlock();
+        }
+    }
+
+    // Must be called with the lock held.
+    private Batch takeNext() {
+        Set<String> throttled = null;
+        long now = System.currentTimeMillis();
+        wake_at_ = 0;
+
+        Iterator<Batch> iter = queue_.iterator();
+        while (iter.hasNext()) {
+            Batch batch = iter.next();
+            if (getActive(batch.provider) >= getLimit(batch.provider))
+                continue;
+            if (throttled != null && throttled.contains(batch.provider))
+                continue;
+            if (batch.throttle != null) {
+                long delay = batch.throttle.acquire();
+                if (delay > 0) {
+                    if (throttled == null)
+                        throttled = new HashSet<String>();
+                    throttled.add(batch.provider);
+                    if (wake_at_ == 0 || now + delay < wake_at_)
+                        wake_at_ = now + delay;
+                    continue;
+                }
+            }
+            iter.remove();
+            return batch;
+        }
+        return null;
+    }
+
+    private int getActive(String provider) {
+        Integer active = lane_active_.get(provider);
+        return active != null ? active : 0;
+    }
+
+    private int getLimit(String provider) {
+        Integer limit = lane_limits_.get(provider);
+        return limit != null ? limit : DEFAULT_LANE_LIMIT;
+    }
+
+    private class Worker implements Runnable {
+        final Thread thread;
+        Batch current;
+
+        Worker() {
+            thread = new Thread(this, TAG);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            lock_.lock();
+            try {
+                while (true) {
+                    Batch batch = takeNext();
+                    if (batch == null) {
+                        long timeout = IDLE_TIMEOUT_MS;
+                        if (wake_at_ != 0)
+                            timeout = Math.max(1, wake_at_ - System.currentTimeMillis());
+
+                        idle_workers_++;
+                        boolean signalled;
+                        try {
+                            signalled = cv_.await(timeout, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            // A stale cancellation; nothing is running, so just retry.
+                            signalled = true;
+                        }
+                        idle_workers_--;
+                        if (!signalled && queue_.isEmpty())
+                            return;
+                        continue;
+                    }
+
+                    current = batch;
+                    lane_active_.put(batch.provider, getActive(batch.provider) + 1);
+                    lock_.unlock();
+                    try {
+                        if (!batch.token.isCancelled())
+                            batch.work.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Fetch task failed", e);
+                    } finally {
+                        lock_.lock();
+                        current = null;
+                        lane_active_.put(batch.provider, getActive(batch.provider) - 1);
+
+                        // Clear any interrupt left over from cancelling this batch.
+                        Thread.interrupted();
+                        cv_.signalAll();
+                    }
+                }
+            } finally {
+                // However the worker exits, make room for a replacement.
+                workers_.remove(this);
+                lock_.unlock();
+            }
+        }
+    }
+}
@@ -22,13 +22,24 @@ import java.io.IOException;
 public class HttpCodeException extends IOException
 {
     private int code_;
+    private long retry_after_ms_ = -1;
 
     public HttpCodeException(int code) {
         super("HTTP returned response code " + code);
         code_ = code;
     }
 
+    public HttpCodeException(int code, long retry_after_ms) {
+        this(code);
+        retry_after_ms_ = retry_after_ms;
+    }
+
     public int code() {
         return code_;
     }
+
+    // How long the server asked us to wait (Retry-After), or -1 if it didn't say.
+    public long retryAfterMs() {
+        return retry_after_ms_;
+    }
 }
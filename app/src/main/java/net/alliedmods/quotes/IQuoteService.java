@@ -22,8 +22,15 @@ import java.util.List;
 public interface IQuoteService
 {
     public abstract void shutdown();
-    public abstract List<QuoteResult> query(List<QuoteRequest> requests) throws Exception;
+    public abstract String getName();
+    public abstract void query(List<QuoteRequest> requests, IQuoteSink sink) throws Exception;
     public abstract int getBatchSize();
+    public abstract int getMaxBatchSize();
+
+    // Published rate limits, or 0 if the provider has none.
+    public abstract int getRequestsPerMinute();
+    public abstract int getRequestsPerDay();
+
     public abstract void prefetchSearchData() throws InterruptedException;
     public abstract SymbolSuggestion[] suggestSymbols(String prefix);
 }
@@ -17,37 +17,48 @@
 // along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package net.alliedmods.quotes;
 
+import android.util.JsonReader;
 import android.util.Log;
 
+import net.alliedmods.stocks.ByteBody;
 import net.alliedmods.stocks.FastCsvParser;
+import net.alliedmods.stocks.HttpClient;
 import net.alliedmods.stocks.IThread;
+import net.alliedmods.stocks.LineIndex;
+import net.alliedmods.stocks.SymbolDirectory;
+import net.alliedmods.stocks.SymbolSearch;
 import net.alliedmods.stocks.UrlBuilder;
 import net.alliedmods.stocks.Utilities;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 public class IexCloud implements IQuoteService {
     private final static String TAG = "IexCloud";
     private final static String BASE_URL = "https://cloud.iexapis.com/v1/";
-    private final static String SYMBOL_CACHE_PATH = "iexcloud-symbols.json";
+    private final static String SYMBOL_DIRECTORY_PATH = "iexcloud-symbols.dir";
+    // ETag and Last-Modified of the symbol list the directory was compiled from.
+    private final static String SYMBOL_VALIDATORS_PATH = "iexcloud-symbols.validators";
+    // The raw CSV that older versions kept; it's compiled into a directory once, then deleted.
+    private final static String OLD_SYMBOL_CACHE_PATH = "iexcloud-symbols.json";
 
     private File cache_dir_;
     private String api_key_;
-    private FastCsvParser symbol_cache_ = null;
+    private SymbolDirectory symbol_cache_ = null;
+    private SymbolSearch symbol_search_ = null;
     private BackgroundRefresh refresh_thread_ = null;
 
     public IexCloud(File cache_dir, String api_key) {
@@ -57,17 +68,25 @@ public class IexCloud implements IQuoteService {
 
     @Override
     public void shutdown() {
-        if (refresh_thread_ != null) {
-            refresh_thread_.shutdown();
+        BackgroundRefresh thread;
+        synchronized (this) {
+            thread = refresh_thread_;
             refresh_thread_ = null;
         }
+        // Not under the lock, since the refresh takes it to swap in a new directory.
+        if (thread != null)
+            thread.shutdown();
     }
 
     @Override
-    public List<QuoteResult> query(List<QuoteRequest> requests) throws Exception {
-        List<QuoteResult> results = query_impl(requests);
-        if (results != null)
-            return results;
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public void query(List<QuoteRequest> requests, IQuoteSink sink) throws Exception {
+        if (query_impl(requests, sink))
+            return;
 
         // Unfortunately, IEXCloud will abort the whole query if one symbol is not found.
         // If this happens, find which symbols are invalid.
@@ -78,7 +97,7 @@ public class IexCloud implements IQuoteService {
             List<QuoteRequest> new_requests = new ArrayList<QuoteRequest>();
             List<QuoteResult> not_found = new ArrayList<QuoteResult>();
             for (QuoteRequest request : requests) {
-                if (symbol_cache_.hasItem("symbol", request.symbol)) {
+                if (symbol_cache_.contains(request.symbol)) {
                     new_requests.add(request);
                 } else {
                     QuoteResult result = new QuoteResult();
@@ -89,34 +108,33 @@ public class IexCloud implements IQuoteService {
                 }
             }
 
-            if ((results = query_impl(new_requests)) != null) {
+            if (query_impl(new_requests, sink)) {
                 for (QuoteResult bad : not_found)
-                    results.add(bad);
-                return results;
+                    sink.onQuote(bad);
+                return;
             }
         }
 
         // If that failed, query each symbol one by one.
-        results = new ArrayList<QuoteResult>();
         for (QuoteRequest request : requests) {
             List<QuoteRequest> container = new ArrayList<QuoteRequest>();
             container.add(request);
 
-            List<QuoteResult> single_result = query_impl(container);
-            if (single_result != null) {
-                results.add(single_result.get(0));
-            } else {
+            if (!query_impl(container, sink)) {
                 QuoteResult result = new QuoteResult();
                 result.success = false;
                 result.symbol = request.symbol;
                 result.error = QuoteResult.SYMBOL_NOT_FOUND;
-                results.add(result);
+                sink.onQuote(result);
             }
         }
-        return results;
     }
 
-    private List<QuoteResult> query_impl(List<QuoteRequest> requests) throws Exception {
+    // Returns false if the provider rejected the batch because a symbol was not found. Nothing
+    // is sent to the sink in that case.
+    private boolean query_impl(List<QuoteRequest> requests, final IQuoteSink sink)
+            throws Exception
+    {
         // We don't have to fetch the company name separately here, since the API gives it to us
         // automatically.
         String[] symbols = new String[requests.size()];
@@ -128,29 +146,51 @@ public class IexCloud implements IQuoteService {
         builder.addParam("symbols", String.join(",", symbols));
         URL url = builder.getUrl();
 
-        JSONArray array = null;
         try {
-            array = UrlBuilder.downloadUrlAsJsonArray(url);
+            UrlBuilder.downloadUrl(url, null, new HttpClient.BodyReader<Void>() {
+                @Override
+                public Void read(InputStream body) throws IOException {
+                    try (JsonReader reader = Utilities.newJsonReader(body)) {
+                        reader.beginArray();
+                        while (reader.hasNext())
+                            sink.onQuote(readQuote(reader));
+                        reader.endArray();
+                    }
+                    return null;
+                }
+            });
         } catch (HttpCodeException exception) {
             if (exception.code() == 404)
-                return null;
+                return false;
             throw exception;
         }
-        List<QuoteResult> results = new ArrayList<QuoteResult>();
-        for (int i = 0; i < array.length(); i++) {
-            JSONObject obj = array.getJSONObject(i);
-            QuoteResult result = new QuoteResult();
-            result.success = true;
-            result.symbol = obj.getString("symbol");
-            result.recentQuote = obj.getString("latestPrice");
-            result.prevDayQuote = obj.getString("previousClose");
-            result.companyName = obj.getString("companyName");
+        return true;
+    }
 
-            long ts = obj.getLong("latestUpdate");
-            result.lastTradeDate = QuoteResult.normalizeTimestamp(ts);
-            results.add(result);
+    private QuoteResult readQuote(JsonReader reader) throws IOException {
+        QuoteResult result = new QuoteResult();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("symbol"))
+                result.symbol = Utilities.nextJsonString(reader);
+            else if (name.equals("latestPrice"))
+                result.recentQuote = Utilities.nextJsonDecimal(reader);
+            else if (name.equals("previousClose"))
+                result.prevDayQuote = Utilities.nextJsonDecimal(reader);
+            else if (name.equals("companyName"))
+                result.companyName = Utilities.nextJsonString(reader);
+            else if (name.equals("latestUpdate"))
+                result.lastTradeDate = QuoteResult.normalizeTimestamp(reader.nextLong());
+            else
+                reader.skipValue();
         }
-        return results;
+        reader.endObject();
+
+        result.success = result.symbol != null && result.recentQuote != null;
+        if (!result.success)
+            result.error = "Quote is missing fields";
+        return result;
     }
 
     @Override
@@ -158,19 +198,34 @@ public class IexCloud implements IQuoteService {
         return 10;
     }
 
+    @Override
+    public int getMaxBatchSize() {
+        // This is the documented limit for batch quote requests.
+        return 100;
+    }
+
+    @Override
+    public int getRequestsPerMinute() {
+        return 0;
+    }
+
+    @Override
+    public int getRequestsPerDay() {
+        return 0;
+    }
+
     @Override
     public SymbolSuggestion[] suggestSymbols(String prefix) {
-        if (symbol_cache_ == null)
+        SymbolSearch search = getSymbolSearch();
+        if (search == null)
             return new SymbolSuggestion[0];
 
-        // :TODO: search by company name as well.
-        List<Map<String, String>> results =
-                symbol_cache_.findWithPrefix("symbol", prefix, 10);
+        List<SymbolDirectory.Entry> results = search.search(prefix, 10);
         SymbolSuggestion[] suggestions = new SymbolSuggestion[results.size()];
         for (int i = 0; i < results.size(); i++) {
             SymbolSuggestion s = new SymbolSuggestion();
-            s.companyName = results.get(i).get("name");
-            s.symbol = results.get(i).get("symbol");
+            s.companyName = results.get(i).getName();
+            s.symbol = results.get(i).getSymbol();
             suggestions[i] = s;
         }
         return suggestions;
@@ -178,29 +233,78 @@ public class IexCloud implements IQuoteService {
 
     @Override
     public void prefetchSearchData() throws InterruptedException {
-        if (symbol_cache_ != null)
-            return;
+        // Quote workers can get here concurrently. Synchronized so only one of them starts a
+        // refresh, and so we don't try to read and write the file at same time.
+        File f = getSymbolDirectoryFile();
+        SymbolDirectory directory;
+        synchronized (this) {
+            if (symbol_cache_ != null)
+                return;
 
-        File f = new File(SYMBOL_CACHE_PATH);
-        if (f.exists()) {
-            LocalDate then = Utilities.normalize(new Date(f.lastModified()));
-            LocalDate now = LocalDate.now(Utilities.UTC);
-            long days = Math.abs(java.time.temporal.ChronoUnit.DAYS.between(now, then));
-            if (days >= 14)
-                refresh_thread_ = new BackgroundRefresh(this);
+            // Checking for a newer symbol list is cheap, since an unchanged one only costs a
+            // 304, so do it daily.
+            if (f.exists() && refresh_thread_ == null) {
+                LocalDate then = Utilities.normalize(new Date(f.lastModified()));
+                LocalDate now = LocalDate.now(Utilities.UTC);
+                long days = Math.abs(java.time.temporal.ChronoUnit.DAYS.between(now, then));
+                if (days >= 1)
+                    refresh_thread_ = new BackgroundRefresh(this);
+            }
+
+            directory = SymbolDirectory.open(f);
+            if (directory == null)
+                directory = compileOldSymbolCache();
+        }
+        if (directory != null)
+            setSymbolDirectory(directory);
+        else
+            refreshSearchData();
+    }
+
+    // Quotes only need contains(), so the directory is published as soon as it's mapped. The
+    // name index is left for the first search to build.
+    private void setSymbolDirectory(SymbolDirectory directory) {
+        synchronized (this) {
+            symbol_cache_ = directory;
+            symbol_search_ = null;
         }
+    }
 
+    // Builds the name index on the calling thread, which is the symbol search thread rather than
+    // a quote worker. It's built outside the lock so a refresh can still swap the directory.
+    private SymbolSearch getSymbolSearch() {
+        SymbolDirectory directory;
+        synchronized (this) {
+            if (symbol_search_ != null)
+                return symbol_search_;
+            directory = symbol_cache_;
+        }
+        if (directory == null)
+            return null;
+
+        SymbolSearch search = new SymbolSearch(directory);
+        synchronized (this) {
+            if (symbol_cache_ == directory && symbol_search_ == null)
+                symbol_search_ = search;
+        }
+        return search;
+    }
+
+    private SymbolDirectory compileOldSymbolCache() {
+        File old_file = new File(cache_dir_, OLD_SYMBOL_CACHE_PATH);
+        if (!old_file.exists())
+            return null;
         try {
-            // Synchronized so we don't try to read and write the file at same time.
-            synchronized (this) {
-                byte[] data = Files.readAllBytes(getSymbolCachePath());
-                String contents = Utilities.fastDecodeUtf8(data);
-                symbol_cache_ = new FastCsvParser(contents);
-            }
+            byte[] data = Files.readAllBytes(old_file.toPath());
+            FastCsvParser csv = new FastCsvParser(LineIndex.decode(data));
+            SymbolDirectory.build(getSymbolDirectoryFile(), csv);
         } catch (IOException e) {
-            Log.e(TAG, "Could not load symbol cache", e);
-            refreshSearchData();
+            Log.e(TAG, "Could not convert symbol cache", e);
+            return null;
+        } finally {
+            old_file.delete();
         }
+        return SymbolDirectory.open(getSymbolDirectoryFile());
     }
 
     private boolean refreshSearchData() throws InterruptedException {
@@ -215,33 +319,103 @@ public class IexCloud implements IQuoteService {
             return false;
         }
 
-        String contents = null;
+        // The reference data is several megabytes. It's parsed once, here, and compiled into a
+        // directory that later visits just map. The directory remembers which list it came
+        // from, so if that hasn't changed, the server only sends a 304.
+        HashMap<String, String> headers = new HashMap<String, String>();
+        if (getSymbolDirectoryFile().exists()) {
+            Properties old_validators = readValidators();
+            String etag = old_validators.getProperty("etag");
+            if (etag != null)
+                headers.put("If-None-Match", etag);
+            String last_modified = old_validators.getProperty("last_modified");
+            if (last_modified != null)
+                headers.put("If-Modified-Since", last_modified);
+        }
+
+        HashMap<String, String> validators = new HashMap<String, String>();
+        ByteBody body = null;
         try {
-            contents = UrlBuilder.downloadUrl(url);
+            body = UrlBuilder.downloadBody(url, headers, validators);
+        } catch (HttpCodeException e) {
+            if (e.code() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.e(TAG, "Could not download symbols", e);
+                return false;
+            }
+            // Still current; restart the clock on the next check.
+            if (!getSymbolDirectoryFile().setLastModified(System.currentTimeMillis()))
+                Log.e(TAG, "Could not touch symbol directory");
+            return true;
         } catch (Exception e) {
             Log.e(TAG, "Could not download symbols", e);
             return false;
         }
 
+        FastCsvParser csv;
+        try {
+            csv = new FastCsvParser(LineIndex.decode(body.toByteArray()));
+        } finally {
+            body.close();
+        }
+
+        SymbolDirectory directory = null;
         try {
             synchronized (this) {
-                symbol_cache_ = new FastCsvParser(contents);
-                Files.write(getSymbolCachePath(), Collections.singleton(contents));
+                // Drop the old validators first, so they can never describe the wrong list.
+                getValidatorsFile().delete();
+                SymbolDirectory.build(getSymbolDirectoryFile(), csv);
+                directory = SymbolDirectory.open(getSymbolDirectoryFile());
+                writeValidators(validators);
             }
         } catch (IOException e) {
-            Log.e(TAG, "Could not save symbol cache", e);
+            Log.e(TAG, "Could not save symbol directory", e);
         }
+        if (directory != null)
+            setSymbolDirectory(directory);
         return true;
     }
 
-    private Path getSymbolCachePath() {
-        return Paths.get(cache_dir_.getPath(), SYMBOL_CACHE_PATH);
+    private File getSymbolDirectoryFile() {
+        return new File(cache_dir_, SYMBOL_DIRECTORY_PATH);
+    }
+
+    private File getValidatorsFile() {
+        return new File(cache_dir_, SYMBOL_VALIDATORS_PATH);
+    }
+
+    private Properties readValidators() {
+        Properties props = new Properties();
+        try (FileInputStream fs = new FileInputStream(getValidatorsFile())) {
+            props.load(fs);
+        } catch (IOException e) {
+            // Never fetched, or written by an older version; download unconditionally.
+        }
+        return props;
+    }
+
+    private void writeValidators(Map<String, String> validators) throws IOException {
+        Properties props = new Properties();
+        if (validators.containsKey("ETag"))
+            props.setProperty("etag", validators.get("ETag"));
+        if (validators.containsKey("Last-Modified"))
+            props.setProperty("last_modified", validators.get("Last-Modified"));
+        if (props.isEmpty())
+            return;
+
+        File file = getValidatorsFile();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fs = new FileOutputStream(temp)) {
+            props.store(fs, "");
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Could not replace " + file);
     }
 
     private class BackgroundRefresh extends IThread {
         private IexCloud service_;
         BackgroundRefresh(IexCloud service) {
             service_ = service;
+            thread_.start();
         }
 
         @Override
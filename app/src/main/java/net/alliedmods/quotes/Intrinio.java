@@ -17,15 +17,20 @@
 // along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package net.alliedmods.quotes;
 
+import android.util.JsonReader;
+
+import net.alliedmods.stocks.HttpCache;
+import net.alliedmods.stocks.HttpClient;
 import net.alliedmods.stocks.UrlBuilder;
 import net.alliedmods.stocks.Utilities;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.time.LocalDate;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -34,10 +39,14 @@ public class Intrinio implements IQuoteService
     private static final String TAG = "Intrinio";
     private static final String BASE_URL = "https://api-v2.intrinio.com/";
 
+    private static final long SEARCH_TTL_MS = 24 * 60 * 60 * 1000;
+
     private String api_key_;
 
     public Intrinio(String api_key) {
         api_key_ = api_key;
+
+        HttpCache.setPolicy(BASE_URL + "securities/search", SEARCH_TTL_MS);
     }
 
     @Override
@@ -45,8 +54,12 @@ public class Intrinio implements IQuoteService
     }
 
     @Override
-    public List<QuoteResult> query(List<QuoteRequest> requests) throws Exception {
-        ArrayList<QuoteResult> results = new ArrayList<QuoteResult>();
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public void query(List<QuoteRequest> requests, IQuoteSink sink) throws Exception {
         for (QuoteRequest request : requests) {
             QuoteResult result;
             try {
@@ -54,15 +67,15 @@ public class Intrinio implements IQuoteService
             } catch (Exception e) {
                 result = new QuoteResult();
                 result.success = false;
+                result.symbol = request.symbol;
                 result.error = e.getMessage();
             }
-            results.add(result);
+            sink.onQuote(result);
         }
-        return results;
     }
 
     private QuoteResult query(QuoteRequest request) throws Exception {
-        QuoteResult result = new QuoteResult();
+        final QuoteResult result = new QuoteResult();
         result.symbol = request.symbol;
 
         String base = BASE_URL + "securities/" + request.symbol + "/prices/realtime";
@@ -71,15 +84,35 @@ public class Intrinio implements IQuoteService
         URL url = builder.getUrl();
 
         // Note: the Intrinio API embeds numbers in JSON rather than strings, which is nonsense
-        // for currency values. We just coerce it to String here which is lossy. We would probably
-        // need a custom JSON parser or JSONTokener to fix this.
-        JSONObject object = UrlBuilder.downloadUrlAsJson(url);
-        if (object.has("error"))
-            throw new Exception(object.getString("error"));
-        result.recentQuote = Double.toString(object.getDouble("last_price"));
+        // for currency values. Pulling them out with JsonReader gives us the literal text, so
+        // nothing is lost to a double round-trip.
+        String last_time = UrlBuilder.downloadUrl(url, null, new HttpClient.BodyReader<String>() {
+            @Override
+            public String read(InputStream body) throws IOException {
+                String last_time = null;
+                try (JsonReader reader = Utilities.newJsonReader(body)) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (name.equals("error"))
+                            throw new IOException(Utilities.nextJsonString(reader));
+                        else if (name.equals("last_price"))
+                            result.recentQuote = Utilities.nextJsonDecimal(reader);
+                        else if (name.equals("last_time"))
+                            last_time = Utilities.nextJsonString(reader);
+                        else
+                            reader.skipValue();
+                    }
+                    reader.endObject();
+                }
+                return last_time;
+            }
+        });
+        if (result.recentQuote == null || last_time == null)
+            throw new Exception("Quote is missing fields");
 
         // This is not really correct use of timezones, but whatever.
-        LocalDate trade_date = Utilities.parseIsoDateTime(object.getString("last_time"));
+        LocalDate trade_date = Utilities.parseIsoDateTime(last_time);
         result.lastTradeDate = Utilities.toYearMonthDay(trade_date);
 
         if (request.fetchName || request.isSameDate(result.lastTradeDate))
@@ -89,31 +122,68 @@ public class Intrinio implements IQuoteService
         return result;
     }
 
-    private void fillExtraQuoteData(QuoteRequest request, QuoteResult result) throws Exception {
+    private void fillExtraQuoteData(QuoteRequest request, final QuoteResult result)
+            throws Exception
+    {
         String base = BASE_URL + "securities/" + request.symbol + "/prices";
         UrlBuilder builder = new UrlBuilder(base);
         builder.addParam("api_key", api_key_);
         builder.addParam("page_size", "2");
         URL url = builder.getUrl();
 
-        JSONObject object = UrlBuilder.downloadUrlAsJson(url);
-        if (object.has("error"))
-            throw new Exception(object.getString("error"));
-
-        if (object.has("security")) {
-            JSONObject security = object.getJSONObject("security");
-            result.companyName = security.getString("name");
-        }
+        UrlBuilder.downloadUrl(url, null, new HttpClient.BodyReader<Void>() {
+            @Override
+            public Void read(InputStream body) throws IOException {
+                try (JsonReader reader = Utilities.newJsonReader(body)) {
+                    readPrices(reader, result);
+                }
+                return null;
+            }
+        });
+    }
 
-        JSONArray prices = object.getJSONArray("stock_prices");
-        for (int i = 0; i < prices.length(); i++) {
-            JSONObject price = prices.getJSONObject(i);
-            String lastTradeDate = price.getString("date");
-            if (!result.lastTradeDate.equals(lastTradeDate)) {
-                result.prevDayQuote = Double.toString(price.getDouble("close"));
-                break;
+    private void readPrices(JsonReader reader, QuoteResult result) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("error")) {
+                throw new IOException(Utilities.nextJsonString(reader));
+            } else if (name.equals("security")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("name"))
+                        result.companyName = Utilities.nextJsonString(reader);
+                    else
+                        reader.skipValue();
+                }
+                reader.endObject();
+            } else if (name.equals("stock_prices")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String date = null;
+                    String close = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String field = reader.nextName();
+                        if (field.equals("date"))
+                            date = Utilities.nextJsonString(reader);
+                        else if (field.equals("close"))
+                            close = Utilities.nextJsonDecimal(reader);
+                        else
+                            reader.skipValue();
+                    }
+                    reader.endObject();
+
+                    // Prices are newest first; take the first close from before the last trade.
+                    if (result.prevDayQuote == null && !result.lastTradeDate.equals(date))
+                        result.prevDayQuote = close;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
             }
         }
+        reader.endObject();
     }
 
     @Override
@@ -121,6 +191,21 @@ public class Intrinio implements IQuoteService
         return 1;
     }
 
+    @Override
+    public int getMaxBatchSize() {
+        return 1;
+    }
+
+    @Override
+    public int getRequestsPerMinute() {
+        return 0;
+    }
+
+    @Override
+    public int getRequestsPerDay() {
+        return 0;
+    }
+
     @Override
     public SymbolSuggestion[] suggestSymbols(String prefix) {
         try {
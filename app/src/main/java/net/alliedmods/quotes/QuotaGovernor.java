@@ -0,0 +1,222 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.quotes;
+
+import android.util.Log;
+
+import net.alliedmods.stocks.PersistenceWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Properties;
+
+// Paces requests against each provider's published limits: a token bucket for per-minute limits
+// and a counter for daily ones. Usage is kept in a small ledger file so that restarting the app
+// doesn't reset the daily count. The ledger is written by the settings writer thread, so saves
+// from concurrent batches are coalesced and never race on the file.
+public class QuotaGovernor {
+    private static final String TAG = "QuotaGovernor";
+    private static final String LEDGER_FILE = "quota_ledger";
+    private static final long MINUTE_MS = 60 * 1000;
+
+    // Backoff after being throttled, when the provider doesn't say how long to wait. It doubles
+    // with each throttle in a row, up to the cap.
+    private static final long MIN_BACKOFF_MS = 2 * 1000;
+    private static final long MAX_BACKOFF_MS = MINUTE_MS;
+
+    private File file_;
+    private PersistenceWriter writer_;
+    private Properties ledger_ = new Properties();
+    private boolean dirty_ = false;
+
+    public QuotaGovernor(File dir, PersistenceWriter writer) {
+        file_ = new File(dir, LEDGER_FILE);
+        writer_ = writer;
+        try (FileInputStream fs = new FileInputStream(file_)) {
+            ledger_.load(fs);
+        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load quota ledger: " + e.getMessage());
+        }
+    }
+
+    // Returns 0 if a request may be sent now, in which case it is charged against the budget.
+    // Otherwise, returns the number of milliseconds to wait before asking again, or -1 if the
+    // daily budget is exhausted.
+    public synchronized long tryAcquire(IQuoteService service) {
+        String name = service.getName();
+        long now = System.currentTimeMillis();
+
+        int per_day = service.getRequestsPerDay();
+        int used = getUsedToday(name);
+        if (per_day > 0 && used >= per_day)
+            return -1;
+
+        long blocked_until = getLong(name + ".blocked_until", 0);
+        if (blocked_until > now)
+            return blocked_until - now;
+
+        int per_minute = service.getRequestsPerMinute();
+        if (per_minute > 0) {
+            double tokens = refill(name, per_minute, now);
+            if (tokens < 1) {
+                double ms_per_token = (double)MINUTE_MS / per_minute;
+                return Math.max(1, (long)Math.ceil((1 - tokens) * ms_per_token));
+            }
+            ledger_.setProperty(name + ".tokens", Double.toString(tokens - 1));
+        }
+
+        ledger_.setProperty(name + ".day", today());
+        ledger_.setProperty(name + ".used", Integer.toString(used + 1));
+        dirty_ = true;
+        return 0;
+    }
+
+    // The provider throttled us anyway (for example, another device shares the API key), so
+    // assume the current window is spent, and hold off all requests to it for a while. That
+    // is |retry_after_ms| if the provider said, or else an exponential backoff.
+    public synchronized void onThrottled(IQuoteService service, long retry_after_ms) {
+        String name = service.getName();
+        long now = System.currentTimeMillis();
+        ledger_.setProperty(name + ".tokens", "0");
+        ledger_.setProperty(name + ".refill", Long.toString(now));
+
+        // Throttles are only "in a row" if the last backoff ended recently.
+        long blocked_until = getLong(name + ".blocked_until", 0);
+        int strikes = (int)getLong(name + ".strikes", 0);
+        if (now - blocked_until > MAX_BACKOFF_MS)
+            strikes = 0;
+
+        long delay = retry_after_ms;
+        if (delay < 0)
+            delay = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min(strikes, 10));
+        ledger_.setProperty(name + ".strikes", Integer.toString(strikes + 1));
+        ledger_.setProperty(name + ".blocked_until", Long.toString(now + delay));
+        dirty_ = true;
+    }
+
+    // Charges a request that was sent without going through tryAcquire, such as a follow-up
+    // request made while running a batch. The bucket may go below zero, which holds back the
+    // next batch instead.
+    public synchronized void charge(IQuoteService service) {
+        String name = service.getName();
+        int per_minute = service.getRequestsPerMinute();
+        if (per_minute > 0) {
+            double tokens = refill(name, per_minute, System.currentTimeMillis());
+            ledger_.setProperty(name + ".tokens", Double.toString(tokens - 1));
+        }
+        ledger_.setProperty(name + ".used", Integer.toString(getUsedToday(name) + 1));
+        ledger_.setProperty(name + ".day", today());
+        dirty_ = true;
+    }
+
+    // Returns how many requests are left today, or -1 if the provider has no daily limit.
+    public synchronized int getRemainingToday(IQuoteService service) {
+        int per_day = service.getRequestsPerDay();
+        if (per_day <= 0)
+            return -1;
+        return Math.max(0, per_day - getUsedToday(service.getName()));
+    }
+
+    // Queues a write of the ledger. Saves that land close together are written once.
+    public void save() {
+        synchronized (this) {
+            if (!dirty_)
+                return;
+            dirty_ = false;
+        }
+        writer_.schedule(LEDGER_FILE, write_ledger_);
+    }
+
+    private final Runnable write_ledger_ = new Runnable() {
+        @Override
+        public void run() {
+            writeLedger();
+        }
+    };
+
+    // Only ever called on the writer thread.
+    private void writeLedger() {
+        Properties copy;
+        synchronized (this) {
+            copy = (Properties)ledger_.clone();
+        }
+
+        File temp = new File(file_.getPath() + ".tmp");
+        try (FileOutputStream fs = new FileOutputStream(temp)) {
+            copy.store(fs, "");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write quota ledger: " + e.getMessage());
+            return;
+        }
+        if (!temp.renameTo(file_))
+            Log.e(TAG, "Could not replace quota ledger");
+    }
+
+    private int getUsedToday(String name) {
+        if (!today().equals(ledger_.getProperty(name + ".day")))
+            return 0;
+        return (int)getLong(name + ".used", 0);
+    }
+
+    private double refill(String name, int per_minute, long now) {
+        double tokens = getDouble(name + ".tokens", per_minute);
+        long last = getLong(name + ".refill", now);
+        long elapsed = Math.max(0, now - last);
+        tokens = Math.min(per_minute, tokens + elapsed * (double)per_minute / MINUTE_MS);
+        ledger_.setProperty(name + ".tokens", Double.toString(tokens));
+        ledger_.setProperty(name + ".refill", Long.toString(now));
+        return tokens;
+    }
+
+    // A damaged ledger must not take the scheduler down, so bad values read as the default.
+    private long getLong(String key, long default_value) {
+        String value = ledger_.getProperty(key);
+        if (value == null)
+            return default_value;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return default_value;
+        }
+    }
+
+    private double getDouble(String key, double default_value) {
+        String value = ledger_.getProperty(key);
+        if (value == null)
+            return default_value;
+        try {
+            double result = Double.parseDouble(value);
+            if (Double.isNaN(result) || Double.isInfinite(result))
+                return default_value;
+            return result;
+        } catch (NumberFormatException e) {
+            return default_value;
+        }
+    }
+
+    // Provider quotas generally reset at midnight UTC.
+    private static String today() {
+        return LocalDate.now(ZoneOffset.UTC).toString();
+    }
+}
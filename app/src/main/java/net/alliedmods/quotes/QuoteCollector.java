@@ -0,0 +1,44 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.quotes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Gathers streamed quotes into a list, for callers that just want the whole batch.
+public class QuoteCollector implements IQuoteSink
+{
+    private List<QuoteResult> results_ = new ArrayList<QuoteResult>();
+
+    @Override
+    public void onQuote(QuoteResult result) {
+        results_.add(result);
+    }
+
+    public List<QuoteResult> getResults() {
+        return results_;
+    }
+
+    public static List<QuoteResult> query(IQuoteService service, List<QuoteRequest> requests)
+            throws Exception
+    {
+        QuoteCollector collector = new QuoteCollector();
+        service.query(requests, collector);
+        return collector.getResults();
+    }
+}
@@ -18,70 +18,159 @@
 package net.alliedmods.quotes;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
 
 public class QuoteFetcher {
+    // Shared by all fetchers, so refreshes reuse warm worker threads.
+    private static final FetchScheduler Scheduler = new FetchScheduler();
+
+    // How many times a batch is re-queued after the provider throttles it.
+    private static final int MAX_THROTTLE_RETRIES = 3;
+
     private IQuoteService service_;
+    private AdaptiveBatcher batcher_;
+    private QuotaGovernor governor_;
 
-    public QuoteFetcher(IQuoteService service) {
+    public QuoteFetcher(IQuoteService service, QuotaGovernor governor) {
         service_ = service;
+        batcher_ = AdaptiveBatcher.forService(service);
+        governor_ = governor;
     }
 
     public interface OnQuery {
-        public void onQuotes(List<QuoteResult> result, Exception e, int task_id);
+        // Called from a fetch thread as soon as each quote is parsed.
+        public void onQuote(QuoteResult result, int task_id);
+
+        // Called once per batch, after all of its quotes have been delivered.
+        public void onBatchComplete(Exception e, int task_id);
     }
 
-    private class FetchTask implements Runnable {
+    private class FetchTask implements Runnable, FetchScheduler.Throttle, IQuoteSink {
         private TaskToken token_;
         private List<QuoteRequest> requests_;
         private OnQuery callback_;
+        private int priority_;
+        private int retries_ = 0;
+        private boolean over_quota_ = false;
+        private Set<String> delivered_ = new HashSet<String>();
 
-        public FetchTask(TaskToken token, List<QuoteRequest> requests, OnQuery callback) {
+        public FetchTask(TaskToken token, List<QuoteRequest> requests, OnQuery callback,
+                         int priority)
+        {
             token_ = token;
             requests_ = requests;
             callback_ = callback;
+            priority_ = priority;
+        }
+
+        // Called by the scheduler, with its lock held.
+        @Override
+        public long acquire() {
+            long delay = governor_.tryAcquire(service_);
+            if (delay < 0) {
+                // Let the batch run so it can report the error.
+                over_quota_ = true;
+                return 0;
+            }
+            return delay;
+        }
+
+        @Override
+        public void onQuote(QuoteResult result) {
+            if (result.symbol != null)
+                delivered_.add(result.symbol);
+            callback_.onQuote(result, token_.getTaskId());
         }
 
         @Override
         public void run() {
-            List<QuoteResult> results = null;
+            if (over_quota_) {
+                callback_.onBatchComplete(new QuotaExceededException(service_.getName()),
+                        token_.getTaskId());
+                return;
+            }
+            governor_.save();
+
             Exception ex = null;
+            long start = System.nanoTime();
             try {
-                results = service_.query(requests_);
+                service_.query(requests_, this);
+                long elapsed_ms = (System.nanoTime() - start) / 1000000;
+                batcher_.recordSuccess(requests_.size(), elapsed_ms);
             } catch (Exception e) {
                 ex = e;
-                results = new ArrayList<QuoteResult>();
+                if (!token_.isCancelled())
+                    batcher_.recordFailure(requests_.size(), e);
             }
-            callback_.onQuotes(results, ex, token_.getTaskId());
+            Scheduler.setLaneLimit(service_.getName(), batcher_.getConcurrency());
+
+            boolean throttled = isThrottled(ex);
+            if (throttled)
+                governor_.onThrottled(service_, retryAfterMs(ex));
+            governor_.save();
+
+            if (throttled && !token_.isCancelled() && retries_ < MAX_THROTTLE_RETRIES) {
+                // Wait for the next window and try again with whatever wasn't delivered,
+                // rather than failing the batch.
+                List<QuoteRequest> remaining = new ArrayList<QuoteRequest>();
+                for (QuoteRequest request : requests_) {
+                    if (!delivered_.contains(request.symbol))
+                        remaining.add(request);
+                }
+                if (!remaining.isEmpty()) {
+                    requests_ = remaining;
+                    retries_++;
+                    Scheduler.submit(token_, service_.getName(), priority_, this, this);
+                    return;
+                }
+            }
+            callback_.onBatchComplete(ex, token_.getTaskId());
         }
     }
 
+    static boolean isThrottled(Exception e) {
+        if (e instanceof RateLimitedException)
+            return true;
+        return e instanceof HttpCodeException && ((HttpCodeException)e).code() == 429;
+    }
+
+    private static long retryAfterMs(Exception e) {
+        if (e instanceof HttpCodeException)
+            return ((HttpCodeException)e).retryAfterMs();
+        return -1;
+    }
+
     public TaskToken fetch(List<QuoteRequest> symbols, OnQuery callback) {
-        int batch_size = service_.getBatchSize();
-        int num_batches = getNumBatches(symbols.size(), batch_size);
-
-        ExecutorService pool = Executors.newFixedThreadPool(Math.min(num_batches, 4));
-        TaskToken token = new TaskToken(pool, num_batches);
-
-        for (int i = 0; i < num_batches; i++) {
-            int start = i * batch_size;
-            int end = Math.min(i * batch_size + batch_size, symbols.size());
-            List<QuoteRequest> batch = symbols.subList(start, end);
-            FetchTask task = new FetchTask(token, batch, callback);
-            pool.submit(task);
-        }
-        return token;
+        return fetch(symbols, callback, FetchScheduler.PRIORITY_NORMAL);
     }
 
-    private int getNumBatches(int symbols, int batch_size) {
-        if (symbols % batch_size != 0)
-            symbols += batch_size;
-        return symbols / batch_size;
+    public TaskToken fetch(List<QuoteRequest> symbols, OnQuery callback, int priority) {
+        List<List<QuoteRequest>> batches = batcher_.split(dedupe(symbols));
+        Scheduler.setLaneLimit(service_.getName(), batcher_.getConcurrency());
+
+        TaskToken token = new TaskToken(Scheduler, batches.size());
+        for (List<QuoteRequest> batch : batches) {
+            FetchTask task = new FetchTask(token, batch, callback, priority);
+            Scheduler.submit(token, service_.getName(), priority, task, task);
+        }
+        return token;
     }
 
     public void shutdown() {
         service_.shutdown();
     }
+
+    // A symbol can be in more than one watchlist; however many times it's asked for, fetch it
+    // once.
+    private static List<QuoteRequest> dedupe(List<QuoteRequest> requests) {
+        Set<String> seen = new HashSet<String>();
+        List<QuoteRequest> unique = new ArrayList<QuoteRequest>(requests.size());
+        for (QuoteRequest request : requests) {
+            if (seen.add(request.symbol))
+                unique.add(request);
+        }
+        return unique;
+    }
 }
@@ -17,12 +17,12 @@
 // along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package net.alliedmods.quotes;
 
-import android.os.Bundle;
-
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.Date;
 
+// Results are passed between threads by reference, so they must not be modified once they have
+// been handed to an IQuoteSink.
 public class QuoteResult {
     public static final String SYMBOL_NOT_FOUND = "symbol_not_found";
 
@@ -34,30 +34,6 @@ public class QuoteResult {
     public String companyName;
     public String error;
 
-    public static QuoteResult deserialize(Bundle b) {
-        QuoteResult result = new QuoteResult();
-        result.lastTradeDate = b.getString("last_trade_date");
-        result.prevDayQuote = b.getString("prev_day_quote");
-        result.recentQuote = b.getString("recent_quote");
-        result.success = b.getBoolean("success");
-        result.symbol = b.getString("symbol");
-        result.companyName = b.getString("company_name");
-        result.error = b.getString("error");
-        return result;
-    }
-
-    public Bundle serialize() {
-        Bundle b = new Bundle();
-        b.putString("symbol", this.symbol);
-        b.putBoolean("success", this.success);
-        b.putString("last_trade_date", this.lastTradeDate);
-        b.putString("prev_day_quote", this.prevDayQuote);
-        b.putString("recent_quote", this.recentQuote);
-        b.putString("company_name", this.companyName);
-        b.putString("error", this.error);
-        return b;
-    }
-
     // We don't make use of this yet, but in theory we could remember that a symbol isn't found
     // to avoid re-querying it and incurring API use.
     public boolean notFound() {
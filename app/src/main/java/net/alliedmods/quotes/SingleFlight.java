@@ -0,0 +1,106 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.quotes;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Collapses concurrent calls for the same key into one. The first caller becomes the leader and
+// does the work; everyone else who asks for the key before it finishes waits for its result.
+public class SingleFlight<V> {
+    // How long a waiter gives the leader before giving up on it.
+    public static final long MAX_WAIT_MS = 30 * 1000;
+
+    public static class Call<V> {
+        private final String key_;
+        private final CompletableFuture<V> future_;
+        private final boolean leader_;
+
+        private Call(String key, CompletableFuture<V> future, boolean leader) {
+            key_ = key;
+            future_ = future;
+            leader_ = leader;
+        }
+
+        public boolean isLeader() {
+            return leader_;
+        }
+    }
+
+    private final Map<String, CompletableFuture<V>> in_flight_ =
+            new HashMap<String, CompletableFuture<V>>();
+
+    public synchronized Call<V> begin(String key) {
+        CompletableFuture<V> future = in_flight_.get(key);
+        if (future != null)
+            return new Call<V>(key, future, false);
+        future = new CompletableFuture<V>();
+        in_flight_.put(key, future);
+        return new Call<V>(key, future, true);
+    }
+
+    // Only the leader may complete a call.
+    public void complete(Call<V> call, V value) {
+        synchronized (this) {
+            in_flight_.remove(call.key_);
+        }
+        call.future_.complete(value);
+    }
+
+    public void fail(Call<V> call, Throwable t) {
+        synchronized (this) {
+            in_flight_.remove(call.key_);
+        }
+        call.future_.completeExceptionally(t);
+    }
+
+    public V await(Call<V> call) throws Exception {
+        return await(call, MAX_WAIT_MS);
+    }
+
+    // Throws TimeoutException if the leader hasn't finished in time, so a stuck leader can't
+    // hold its waiters forever.
+    public V await(Call<V> call, long timeout_ms) throws Exception {
+        try {
+            return call.future_.get(timeout_ms, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception)e.getCause();
+            throw e;
+        }
+    }
+
+    public V run(String key, Callable<V> callable) throws Exception {
+        Call<V> call = begin(key);
+        if (!call.isLeader())
+            return await(call);
+        try {
+            V value = callable.call();
+            complete(call, value);
+            return value;
+        } catch (Exception e) {
+            fail(call, e);
+            throw e;
+        }
+    }
+}
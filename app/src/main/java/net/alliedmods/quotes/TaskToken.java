@@ -17,42 +17,41 @@
 // along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package net.alliedmods.quotes;
 
-import java.util.concurrent.ExecutorService;
-
 // This allows us to check whether a batch of requests completed.
 public class TaskToken {
     private static int IdCounter = 0;
 
-    private ExecutorService service_;
+    private FetchScheduler scheduler_;
     private int tasks_added_ = 0;
     private int tasks_completed_ = 0;
     private boolean cancelled_ = false;
     private int task_id_ = 0;
 
-    public TaskToken(ExecutorService service, int num_tasks) {
-        service_ = service;
+    public TaskToken(FetchScheduler scheduler, int num_tasks) {
+        scheduler_ = scheduler;
         task_id_ = GetNextTaskId();
         tasks_added_ = num_tasks;
     }
 
     public void cancel() {
         synchronized (this) {
+            if (cancelled_)
+                return;
             cancelled_ = true;
         }
-        service_.shutdownNow();
-        service_ = null;
+        scheduler_.cancel(this);
     }
 
-    public boolean done() {
-        boolean done = false;
+    public boolean isCancelled() {
         synchronized (this) {
-            done = cancelled_ || tasks_added_ == tasks_completed_;
+            return cancelled_;
         }
-        if (done && service_ != null) {
-            service_.shutdown();
-            service_ = null;
+    }
+
+    public boolean done() {
+        synchronized (this) {
+            return cancelled_ || tasks_added_ == tasks_completed_;
         }
-        return done;
     }
 
     public void receivedTaskCompletion() {
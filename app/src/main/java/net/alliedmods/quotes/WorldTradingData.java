@@ -17,18 +17,25 @@
 // along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package net.alliedmods.quotes;
 
+import android.util.JsonReader;
+
+import net.alliedmods.stocks.HttpCache;
+import net.alliedmods.stocks.HttpClient;
 import net.alliedmods.stocks.UrlBuilder;
 import net.alliedmods.stocks.Utilities;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -37,12 +44,16 @@ public class WorldTradingData implements IQuoteService
     private static final String TAG = "WorldTradingData";
     private static final String BASE_URL = "https://api.worldtradingdata.com/api/v1/";
 
+    private static final long SEARCH_TTL_MS = 24 * 60 * 60 * 1000;
+
     private String api_key_;
     private DateTimeFormatter datetime_format_;
 
     public WorldTradingData(String api_key) {
         api_key_ = api_key;
         datetime_format_ = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+        HttpCache.setPolicy(BASE_URL + "stock_search", SEARCH_TTL_MS);
     }
 
     @Override
@@ -50,9 +61,12 @@ public class WorldTradingData implements IQuoteService
     }
 
     @Override
-    public List<QuoteResult> query(List<QuoteRequest> requests) throws Exception {
-        List<QuoteResult> results = new ArrayList<QuoteResult>();
+    public String getName() {
+        return TAG;
+    }
 
+    @Override
+    public void query(List<QuoteRequest> requests, final IQuoteSink sink) throws Exception {
         List<String> symbols = new ArrayList<String>();
         for (QuoteRequest request : requests)
             symbols.add(request.symbol);
@@ -62,34 +76,90 @@ public class WorldTradingData implements IQuoteService
         builder.addParam("symbol", String.join(",", symbols));
         URL url = builder.getUrl();
 
-        JSONObject object = UrlBuilder.downloadUrlAsJson(url);
-        if (!object.has("data") && object.has("Message"))
-            throw new Exception(object.getString("message"));
-
-        JSONArray list = object.getJSONArray("data");
-        for (int i = 0; i < list.length(); i++) {
-            JSONObject item = list.getJSONObject(i);
-            QuoteResult result = new QuoteResult();
-            result.success = true;
-            result.prevDayQuote = item.getString("close_yesterday");
-            result.recentQuote = item.getString("price");
-            result.companyName = item.getString("name");
-            result.symbol = item.getString("symbol");
-
-            LocalDate date = getLastTradeDate(item);
-            result.lastTradeDate = Utilities.toYearMonthDay(date);
+        UrlBuilder.downloadUrl(url, null, new HttpClient.BodyReader<Void>() {
+            @Override
+            public Void read(InputStream body) throws IOException {
+                try (JsonReader reader = Utilities.newJsonReader(body)) {
+                    readResponse(reader, sink);
+                }
+                return null;
+            }
+        });
+    }
+
+    private void readResponse(JsonReader reader, IQuoteSink sink) throws IOException {
+        String message = null;
+        boolean has_data = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("data")) {
+                has_data = true;
+                reader.beginArray();
+                while (reader.hasNext())
+                    sink.onQuote(readQuote(reader));
+                reader.endArray();
+            } else if (name.equals("Message")) {
+                message = Utilities.nextJsonString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!has_data)
+            throw new IOException(message != null ? message : "Response has no data");
+    }
+
+    private QuoteResult readQuote(JsonReader reader) throws IOException {
+        QuoteResult result = new QuoteResult();
+        String last_trade_time = null;
+        String timezone = null;
+        String timezone_name = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("symbol"))
+                result.symbol = Utilities.nextJsonString(reader);
+            else if (name.equals("name"))
+                result.companyName = Utilities.nextJsonString(reader);
+            else if (name.equals("price"))
+                result.recentQuote = Utilities.nextJsonDecimal(reader);
+            else if (name.equals("close_yesterday"))
+                result.prevDayQuote = Utilities.nextJsonDecimal(reader);
+            else if (name.equals("last_trade_time"))
+                last_trade_time = Utilities.nextJsonString(reader);
+            else if (name.equals("timezone"))
+                timezone = Utilities.nextJsonString(reader);
+            else if (name.equals("timezone_name"))
+                timezone_name = Utilities.nextJsonString(reader);
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
 
-            results.add(result);
+        if (result.symbol == null || result.recentQuote == null || last_trade_time == null) {
+            result.error = "Quote is missing fields";
+            return result;
+        }
+        try {
+            LocalDate date = getLastTradeDate(last_trade_time, timezone, timezone_name);
+            result.lastTradeDate = Utilities.toYearMonthDay(date);
+        } catch (DateTimeParseException e) {
+            result.error = e.getMessage();
+            return result;
         }
-        return results;
+        result.success = true;
+        return result;
     }
 
-    private LocalDate getLastTradeDate(JSONObject object) throws Exception {
-        String last_trade_date = object.getString("last_trade_time");
+    private LocalDate getLastTradeDate(String last_trade_date, String timezone,
+                                       String timezone_name)
+    {
         LocalDateTime dt = LocalDateTime.parse(last_trade_date, datetime_format_);
-        ZoneId zone = Utilities.getZone(
-                object.getString("timezone"),
-                object.getString("timezone_name"));
+        ZoneId zone = Utilities.getZone(timezone, timezone_name);
         if (zone == null)
             return dt.toLocalDate();
         ZonedDateTime zdt = dt.atZone(zone);
@@ -103,6 +173,23 @@ public class WorldTradingData implements IQuoteService
         return 5;
     }
 
+    @Override
+    public int getMaxBatchSize() {
+        // The free API rejects anything larger.
+        return 5;
+    }
+
+    @Override
+    public int getRequestsPerMinute() {
+        return 0;
+    }
+
+    @Override
+    public int getRequestsPerDay() {
+        // The free tier allows 250 requests per day.
+        return 250;
+    }
+
     @Override
     public void prefetchSearchData() throws InterruptedException {
     }
@@ -1,11 +1,18 @@
 package net.alliedmods.quotes;
 
+import android.util.JsonReader;
+
+import net.alliedmods.stocks.HttpCache;
+import net.alliedmods.stocks.HttpClient;
 import net.alliedmods.stocks.UrlBuilder;
+import net.alliedmods.stocks.Utilities;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -18,9 +25,14 @@ public class YhFinance implements IQuoteService {
     private final String QUOTE_ENDPOINT = "/v6/finance/quote";
     private final String AUTOCOMPLETE_ENDPOINT = "/v6/finance/autocomplete";
 
+    // Autocomplete results are cached on disk for this long.
+    private static final long SEARCH_TTL_MS = 24 * 60 * 60 * 1000;
+
     public YhFinance(String api_key) {
         super();
         api_key_ = api_key;
+
+        HttpCache.setPolicy(BASE_URL + AUTOCOMPLETE_ENDPOINT, SEARCH_TTL_MS);
     }
 
     @Override
@@ -28,7 +40,12 @@ public class YhFinance implements IQuoteService {
     }
 
     @Override
-    public List<QuoteResult> query(List<QuoteRequest> requests) throws Exception {
+    public String getName() {
+        return "YhFinance";
+    }
+
+    @Override
+    public void query(List<QuoteRequest> requests, final IQuoteSink sink) throws Exception {
         UrlBuilder builder = new UrlBuilder(BASE_URL + QUOTE_ENDPOINT);
         builder.addParam("region", "US");
         builder.addParam("lang", "en");
@@ -38,30 +55,73 @@ public class YhFinance implements IQuoteService {
             symbols.add(request.symbol);
         builder.addParam("symbols", String.join(",", symbols));
         URL url = builder.getUrl();
-        String text = UrlBuilder.downloadUrl(url, getHeaders());
-        JSONObject response = new JSONObject(text);
-        JSONObject obj = response.getJSONObject("quoteResponse");
-        if (obj.getString("error") != null && !obj.getString("error").equals("null"))
-            throw new Exception(obj.getString("error"));
-
-        ArrayList<QuoteResult> results = new ArrayList<>();
-
-        JSONArray array = obj.getJSONArray("result");
-        for (int i = 0; i < array.length(); i++) {
-            JSONObject qr_obj = array.getJSONObject(i);
-            QuoteResult qr = new QuoteResult();
-            qr.success = true;
-            qr.symbol = qr_obj.getString("symbol");
-
-            long ts = qr_obj.getLong("regularMarketTime");
-            qr.lastTradeDate = QuoteResult.normalizeTimestamp(ts);
-
-            qr.prevDayQuote = Double.toString(qr_obj.getDouble("regularMarketPreviousClose"));
-            qr.recentQuote = Double.toString(qr_obj.getDouble("regularMarketPrice"));
-            qr.companyName = qr_obj.getString("shortName");
-            results.add(qr);
+
+        // Responses carry dozens of fields per symbol, of which we need five, so pull-parse the
+        // stream rather than building the whole tree.
+        UrlBuilder.downloadUrl(url, getHeaders(), new HttpClient.BodyReader<Void>() {
+            @Override
+            public Void read(InputStream body) throws IOException {
+                try (JsonReader reader = Utilities.newJsonReader(body)) {
+                    readQuoteResponse(reader, sink);
+                }
+                return null;
+            }
+        });
+    }
+
+    private void readQuoteResponse(JsonReader reader, IQuoteSink sink) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("quoteResponse")) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("error")) {
+                    String error = Utilities.nextJsonString(reader);
+                    if (error != null && !error.equals("null"))
+                        throw new IOException(error);
+                } else if (name.equals("result")) {
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        sink.onQuote(readQuote(reader));
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+    }
+
+    private QuoteResult readQuote(JsonReader reader) throws IOException {
+        QuoteResult qr = new QuoteResult();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("symbol"))
+                qr.symbol = Utilities.nextJsonString(reader);
+            else if (name.equals("regularMarketTime"))
+                qr.lastTradeDate = QuoteResult.normalizeTimestamp(reader.nextLong());
+            else if (name.equals("regularMarketPreviousClose"))
+                qr.prevDayQuote = Utilities.nextJsonDecimal(reader);
+            else if (name.equals("regularMarketPrice"))
+                qr.recentQuote = Utilities.nextJsonDecimal(reader);
+            else if (name.equals("shortName"))
+                qr.companyName = Utilities.nextJsonString(reader);
+            else
+                reader.skipValue();
         }
-        return results;
+        reader.endObject();
+
+        qr.success = qr.symbol != null && qr.recentQuote != null;
+        if (!qr.success)
+            qr.error = "Quote is missing fields";
+        return qr;
     }
 
     private HashMap<String, String> getHeaders() {
@@ -76,6 +136,22 @@ public class YhFinance implements IQuoteService {
         return 10;
     }
 
+    @Override
+    public int getMaxBatchSize() {
+        return 50;
+    }
+
+    @Override
+    public int getRequestsPerMinute() {
+        return 0;
+    }
+
+    @Override
+    public int getRequestsPerDay() {
+        // The free tier allows 100 requests per day.
+        return 100;
+    }
+
     @Override
     public void prefetchSearchData() throws InterruptedException {
     }
@@ -149,30 +149,14 @@ public class AddStockActivity extends AppCompatActivity
 
     // This is invoked in the search thread.
     private void postSearchResultMessage(SymbolSuggestion[] suggestions) {
-        Bundle b = new Bundle();
-        b.putInt("count", suggestions.length);
-        for (int i = 0; i < suggestions.length; i++) {
-            Bundle item = suggestions[i].serialize();
-            b.putBundle(Integer.toString(i), item);
-        }
-
-        Message msg = new Message();
+        Message msg = Message.obtain(message_handler_, 0, suggestions);
         msg.setAsynchronous(true);
-        msg.setData(b);
-        message_handler_.sendMessage(msg);
+        msg.sendToTarget();
     }
 
     // This is invoked in the UI thread.
     private void handleSearchMessage(Message msg) {
-        Bundle b = msg.getData();
-        int count = b.getInt("count");
-
-        SymbolSuggestion[] suggestions = new SymbolSuggestion[count];
-        for (int i = 0; i < count; i++) {
-            Bundle item = b.getBundle(Integer.toString(i));
-            suggestions[i] = SymbolSuggestion.deserialize(item);
-        }
-        search_adapter_.update(suggestions);
+        search_adapter_.update((SymbolSuggestion[])msg.obj);
     }
 
     private boolean initializeQuoteService() {
@@ -0,0 +1,48 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import java.util.ArrayDeque;
+
+// A small pool of fixed-size byte arrays for reading response bodies. Polling downloads a body
+// every few seconds per provider, so recycling the buffers keeps the garbage collector out of
+// the way. Buffers that aren't returned are simply collected.
+public class BufferPool {
+    public static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_POOLED = 32;
+
+    private static final ArrayDeque<byte[]> Free = new ArrayDeque<byte[]>();
+
+    public static byte[] acquire() {
+        synchronized (Free) {
+            byte[] chunk = Free.pollFirst();
+            if (chunk != null)
+                return chunk;
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    public static void release(byte[] chunk) {
+        if (chunk == null || chunk.length != CHUNK_SIZE)
+            return;
+        synchronized (Free) {
+            if (Free.size() < MAX_POOLED)
+                Free.addFirst(chunk);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A response body held as raw bytes in pooled chunks. Nothing is decoded until a consumer asks
+// for it, and then always as UTF-8, so a body is never held as both a StringBuilder and a
+// String. Close it to return the chunks to the pool; it must not be used afterward.
+public class ByteBody implements Closeable {
+    private List<byte[]> chunks_ = new ArrayList<byte[]>();
+    private int size_ = 0;
+
+    public static ByteBody read(InputStream is) throws IOException {
+        ByteBody body = new ByteBody();
+        try {
+            body.readFrom(is);
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+        return body;
+    }
+
+    private void readFrom(InputStream is) throws IOException {
+        for (; ; ) {
+            if (size_ == chunks_.size() * BufferPool.CHUNK_SIZE)
+                chunks_.add(BufferPool.acquire());
+
+            int offset = size_ % BufferPool.CHUNK_SIZE;
+
+            byte[] chunk = chunks_.get(chunks_.size() - 1);
+            int bytes_read = is.read(chunk, offset, chunk.length - offset);
+            if (bytes_read == -1)
+                break;
+            size_ += bytes_read;
+        }
+    }
+
+    public int size() {
+        return size_;
+    }
+
+    // Copies the body into a single exactly-sized array.
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size_];
+        int pos = 0;
+        for (byte[] chunk : chunks_) {
+            int length = Math.min(chunk.length, size_ - pos);
+            System.arraycopy(chunk, 0, bytes, pos, length);
+            pos += length;
+        }
+        return bytes;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        int pos = 0;
+        for (byte[] chunk : chunks_) {
+            int length = Math.min(chunk.length, size_ - pos);
+            out.write(chunk, 0, length);
+            pos += length;
+        }
+    }
+
+    public InputStream openStream() {
+        List<InputStream> streams = new ArrayList<InputStream>();
+        int pos = 0;
+        for (byte[] chunk : chunks_) {
+            int length = Math.min(chunk.length, size_ - pos);
+            streams.add(new ByteArrayInputStream(chunk, 0, length));
+            pos += length;
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    // Decodes straight into the String; malformed input decodes to U+FFFD. A body that fits in
+    // one chunk is decoded in place, and a larger one is first joined into a single byte array,
+    // which is still half the size of an intermediate char buffer.
+    public String decodeUtf8() {
+        if (chunks_.size() == 1)
+            return new String(chunks_.get(0), 0, size_, StandardCharsets.UTF_8);
+        return new String(toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        for (byte[] chunk : chunks_)
+            BufferPool.release(chunk);
+        chunks_.clear();
+        size_ = 0;
+    }
+}
@@ -17,30 +17,149 @@
 // along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package net.alliedmods.stocks;
 
+import android.util.Log;
+
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 
+// Prices are kept as fixed-point longs, and everything the stock list shows is derived once when
+// a price is stored. Rendering a row (or flipping the change box) then only reads fields.
 public class CachedQuote {
+    private static final String TAG = "CachedQuote";
+
+    // Providers rarely send more than four decimal places; anything past this is rounded.
+    private static final int MAX_SCALE = 6;
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L,
+    };
+
     public String symbol;
     public String cacheDate;
     public String lastTradeDate;
-    public String prevDayQuote;
-    public String recentQuote;
     public String companyName;
 
+    // When this quote was last fetched, in SystemClock.elapsedRealtime() time, or 0 if it came
+    // from disk. Not persisted.
+    public long fetchTime;
+
+    private FixedPoint price_;
+    private FixedPoint prev_price_;
+
+    // Derived from the two prices above; null if either is missing. The percent change is in
+    // hundredths of a percent.
+    private FixedPoint change_;
+    private FixedPoint percent_change_;
+
+    // Display text, formatted the first time a row asks for it.
+    private String price_text_;
+    private String change_text_;
+    private String percent_text_;
+
     public CachedQuote(String symbol) {
         this.symbol = symbol;
     }
 
-    public BigDecimal getPrice() {
-        if (recentQuote == null)
-            return null;
-        return new BigDecimal(recentQuote);
+    public void setRecentQuote(String text) {
+        price_ = FixedPoint.parse(text);
+        update();
     }
-    public BigDecimal getPrevPrice() {
-        if (prevDayQuote == null)
-            return null;
-        return new BigDecimal(prevDayQuote);
+    public void setPrevDayQuote(String text) {
+        prev_price_ = FixedPoint.parse(text);
+        update();
+    }
+    public void copyPrevDayQuote(CachedQuote other) {
+        prev_price_ = other.prev_price_;
+        update();
+    }
+
+    // These produce the String form for persistence.
+    public String getRecentQuote() {
+        return price_ != null ? price_.toPlainString() : null;
+    }
+    public String getPrevDayQuote() {
+        return prev_price_ != null ? prev_price_.toPlainString() : null;
+    }
+
+    // Raw access for QuoteStore.
+    FixedPoint getPrice() {
+        return price_;
+    }
+    FixedPoint getPrevPrice() {
+        return prev_price_;
+    }
+    void setPrices(FixedPoint price, FixedPoint prev_price) {
+        price_ = price;
+        prev_price_ = prev_price;
+        update();
+    }
+
+    public boolean hasChange() {
+        return change_ != null;
+    }
+    public int getChangeSign() {
+        return change_ != null ? Long.signum(change_.units) : 0;
+    }
+
+    public String getPriceText() {
+        if (price_text_ == null && price_ != null)
+            price_text_ = Utilities.formatPrice(price_.toBigDecimal());
+        return price_text_;
+    }
+
+    // The change texts carry a leading "+" for gains, as the stock list shows them.
+    public String getChangeText() {
+        if (change_text_ == null && change_ != null)
+            change_text_ = signed(Utilities.formatPrice(change_.toBigDecimal()));
+        return change_text_;
+    }
+    public String getPercentChangeText() {
+        if (percent_text_ == null && percent_change_ != null)
+            percent_text_ = signed(Utilities.formatPercent(percent_change_.toBigDecimal()));
+        return percent_text_;
+    }
+
+    private String signed(String text) {
+        return getChangeSign() >= 0 ? "+" + text : text;
+    }
+
+    private void update() {
+        price_text_ = null;
+        change_text_ = null;
+        percent_text_ = null;
+        change_ = null;
+        percent_change_ = null;
+        if (price_ == null || prev_price_ == null)
+            return;
+
+        try {
+            int scale = Math.max(price_.scale, prev_price_.scale);
+            long prev = prev_price_.rescale(scale);
+            long change = Math.subtractExact(price_.rescale(scale), prev);
+            change_ = new FixedPoint(change, scale);
+
+            // change / prev, as a percentage rounded half-up to two places.
+            if (prev != 0) {
+                long percent = divideHalfUp(Math.multiplyExact(change, 10000L), prev);
+                percent_change_ = new FixedPoint(percent, 2);
+            }
+        } catch (ArithmeticException e) {
+            // Only absurdly large prices overflow, so just take the slow path.
+            BigDecimal prev = prev_price_.toBigDecimal();
+            BigDecimal change = price_.toBigDecimal().subtract(prev);
+            change_ = FixedPoint.of(change);
+            if (prev.signum() != 0) {
+                BigDecimal ratio = change.divide(prev, 4, RoundingMode.HALF_UP);
+                percent_change_ = FixedPoint.of(ratio.multiply(new BigDecimal(100)));
+            }
+        }
+    }
+
+    private static long divideHalfUp(long n, long d) {
+        long q = n / d;
+        long r = n % d;
+        if (Math.abs(r) * 2 >= Math.abs(d))
+            q += Long.signum(n) * Long.signum(d);
+        return q;
     }
 
     public static String getCompanyName(CachedQuote quote) {
@@ -49,23 +168,68 @@ public class CachedQuote {
         return quote.companyName;
     }
 
-    public static BigDecimal getPrice(CachedQuote quote) {
+    public static String getPriceText(CachedQuote quote) {
         if (quote == null)
             return null;
-        return quote.getPrice();
+        return quote.getPriceText();
     }
 
-    public static BigDecimal getPriceChange(CachedQuote quote) {
-        if (quote == null || quote.getPrice() == null || quote.getPrevPrice() == null)
-            return null;
-        return quote.getPrice().subtract(quote.getPrevPrice());
+    public static boolean samePrice(CachedQuote a, CachedQuote b) {
+        return FixedPoint.equals(a != null ? a.price_ : null, b != null ? b.price_ : null);
     }
 
-    public static BigDecimal getPercentChange(CachedQuote quote) {
-        BigDecimal change = getPriceChange(quote);
-        if (change == null)
-            return null;
-        change = change.divide(quote.getPrevPrice(), 4, RoundingMode.HALF_UP);
-        return change.multiply(new BigDecimal(100));
+    // Both change values derive from the two prices, so comparing those is enough.
+    public static boolean sameChange(CachedQuote a, CachedQuote b) {
+        return samePrice(a, b) &&
+               FixedPoint.equals(a != null ? a.prev_price_ : null,
+                                 b != null ? b.prev_price_ : null);
+    }
+
+    // A value of units / 10^scale.
+    static class FixedPoint {
+        final long units;
+        final int scale;
+
+        FixedPoint(long units, int scale) {
+            this.units = units;
+            this.scale = scale;
+        }
+
+        static FixedPoint parse(String text) {
+            if (text == null)
+                return null;
+            try {
+                return of(new BigDecimal(text));
+            } catch (NumberFormatException | ArithmeticException e) {
+                Log.e(TAG, "Could not parse price: " + text);
+                return null;
+            }
+        }
+
+        static FixedPoint of(BigDecimal value) {
+            if (value.scale() < 0)
+                value = value.setScale(0);
+            else if (value.scale() > MAX_SCALE)
+                value = value.setScale(MAX_SCALE, RoundingMode.HALF_UP);
+            return new FixedPoint(value.unscaledValue().longValueExact(), value.scale());
+        }
+
+        long rescale(int new_scale) {
+            return Math.multiplyExact(units, POWERS_OF_TEN[new_scale - scale]);
+        }
+
+        BigDecimal toBigDecimal() {
+            return BigDecimal.valueOf(units, scale);
+        }
+
+        String toPlainString() {
+            return toBigDecimal().toPlainString();
+        }
+
+        static boolean equals(FixedPoint a, FixedPoint b) {
+            if (a == null || b == null)
+                return a == b;
+            return a.units == b.units && a.scale == b.scale;
+        }
     }
 }
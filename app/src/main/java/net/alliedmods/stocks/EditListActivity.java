@@ -32,7 +32,6 @@ import android.view.View;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class EditListActivity extends AppCompatActivity {
     private Settings settings_;
@@ -63,6 +62,12 @@ public class EditListActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        settings_.startFlush();
+    }
+
     private void populate() {
         LinearLayoutManager layout = new LinearLayoutManager(this);
 
@@ -74,11 +79,10 @@ public class EditListActivity extends AppCompatActivity {
         decoration.setDrawable(ContextCompat.getDrawable(this, R.drawable.divider_line));
         container.addItemDecoration(decoration);
 
-        Map<String, CachedQuote> cached_quotes = settings_.getCachedQuotes();
         List<CachedQuote> quotes = new ArrayList<CachedQuote>();
         String[] symbols = settings_.getStockSymbols();
         for (String symbol : symbols) {
-            CachedQuote quote = cached_quotes.get(symbol);
+            CachedQuote quote = settings_.getCachedQuote(symbol);
             if (quote == null)
                 quote = new CachedQuote(symbol);
             quotes.add(quote);
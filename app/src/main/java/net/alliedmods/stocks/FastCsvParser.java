@@ -20,133 +20,343 @@ package net.alliedmods.stocks;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 // JSON deserialization is enormously slow on large data sets, so
 // we use this faster parser instead.
+//
+// The text is tokenized once, up front, into the offsets of each
+// field, stored by column. Fields follow RFC 4180: they may be quoted,
+// and quoted fields may hold commas, line breaks, and doubled quotes.
+// Searching a column builds a case-folded, sorted index for it the
+// first time, so lookups are array comparisons; Strings are only made
+// for the fields a caller reads from a matching Row.
 public class FastCsvParser
 {
     private static final String TAG = "FastCsvParser";
 
-    private String[] lines_;
-    private Map<String, Integer> keys_;
+    private char[] text_;
+    private Map<String, Integer> keys_ = new HashMap<String, Integer>();
+    private String[] columns_ = new String[0];
+
+    // Field offsets, as [column][row]. Quoted fields are stored without their quotes, and
+    // fields that also need "" collapsed to " are marked in escaped_ (by row * columns + col).
+    private int[][] starts_;
+    private int[][] ends_;
+    private BitSet escaped_ = new BitSet();
+    private int num_rows_ = 0;
+
+    private Map<Integer, KeyIndex> indexes_ = new HashMap<Integer, KeyIndex>();
+
+    // Scratch space for tokenizing: {start, end, escaped} for each field of the current record.
+    private int[] fields_ = new int[3 * 16];
+    private int num_fields_ = 0;
+
+    public FastCsvParser(LineIndex lines) {
+        text_ = lines.getText();
+        if (lines.size() == 0) {
+            starts_ = new int[0][];
+            ends_ = new int[0][];
+            return;
+        }
+        tokenize(lines.getStart(0), lines.getEnd(lines.size() - 1));
+    }
 
-    public FastCsvParser(String contents) {
-        lines_ = Utilities.fastSplitLines(contents);
+    // A view of one row. Fields are only turned into Strings when read.
+    public class Row {
+        private int row_;
 
-        String[] header = parse(lines_[0]);
+        private Row(int row) {
+            row_ = row;
+        }
+
+        public String get(String column) {
+            Integer index = keys_.get(column);
+            if (index == null)
+                return null;
+            return getField(index, row_);
+        }
+    }
+
+    public int size() {
+        return num_rows_;
+    }
 
-        keys_ = new HashMap<String, Integer>();
-        for (int i = 0; i < header.length; i++)
-            keys_.put(header[i], i);
+    public Row getRow(int row) {
+        return new Row(row);
     }
 
-    // This assumes the lines are sorted by the given key.
+    // This assumes nothing about the order of the rows.
     public boolean hasItem(String key_name, String item) {
-        List<Map<String, String>> objects = new ArrayList<Map<String, String>>();
-        if (!keys_.containsKey(key_name))
+        KeyIndex index = getIndex(key_name);
+        if (index == null)
             return false;
 
-        int key_index = keys_.get(key_name);
+        char[] key = fold(item);
+        int pos = index.lowerBound(key, false);
+        return pos < index.rows.length && index.compare(index.rows[pos], key, false) == 0;
+    }
 
-        int low = 0;
-        int high = numRows() - 1;
-        while (low <= high) {
-            int mid = low + (high - low) / 2;
+    // Rows whose key starts with the given prefix, in key order.
+    public List<Row> findWithPrefix(String key_name, String prefix, int max_count) {
+        List<Row> rows = new ArrayList<Row>();
+        KeyIndex index = getIndex(key_name);
+        if (index == null)
+            return rows;
 
-            String[] row = getRow(mid);
-            while (row == null && mid <= high)
-                row = getRow(mid++);
-            if (row == null)
+        char[] key = fold(prefix);
+        for (int i = index.lowerBound(key, true);
+             i < index.rows.length && rows.size() < max_count;
+             i++)
+        {
+            if (index.compare(index.rows[i], key, true) != 0)
                 break;
+            rows.add(new Row(index.rows[i]));
+        }
+        return rows;
+    }
 
-            int cc = row[key_index].compareToIgnoreCase(item);
-            if (cc == 0)
-                return true;
-            if (cc > 0)
-                high = mid - 1;
-            else
-                low = mid + 1;
+    private void tokenize(int pos, int end) {
+        // The header decides how many columns there are.
+        pos = readRecord(pos, end);
+        int num_columns = num_fields_;
+        columns_ = new String[num_columns];
+        for (int i = 0; i < num_columns; i++) {
+            columns_[i] = slice(fields_[i * 3], fields_[i * 3 + 1], fields_[i * 3 + 2] != 0);
+            keys_.put(columns_[i], i);
+        }
+
+        int capacity = 64;
+        starts_ = new int[num_columns][capacity];
+        ends_ = new int[num_columns][capacity];
+
+        while (pos < end) {
+            int record_start = pos;
+            pos = readRecord(pos, end);
+            if (num_fields_ == 0)
+                continue;
+            if (num_fields_ != num_columns) {
+                Log.e(TAG, "Could not parse CSV line: " +
+                        new String(text_, record_start, pos - record_start).trim());
+                continue;
+            }
+
+            if (num_rows_ == capacity) {
+                capacity *= 2;
+                for (int i = 0; i < num_columns; i++) {
+                    starts_[i] = Arrays.copyOf(starts_[i], capacity);
+                    ends_[i] = Arrays.copyOf(ends_[i], capacity);
+                }
+            }
+            for (int i = 0; i < num_columns; i++) {
+                starts_[i][num_rows_] = fields_[i * 3];
+                ends_[i][num_rows_] = fields_[i * 3 + 1];
+                if (fields_[i * 3 + 2] != 0)
+                    escaped_.set(num_rows_ * num_columns + i);
+            }
+            num_rows_++;
         }
-        return false;
     }
 
-    // This assumes the lines are sorted by the given key.
-    public List<Map<String, String>> findWithPrefix(String key_name, String prefix, int max_count)
-    {
-        List<Map<String, String>> objects = new ArrayList<Map<String, String>>();
-        if (!keys_.containsKey(key_name))
-            return objects;
-
-        int key_index = keys_.get(key_name);
-
-        int low = 0;
-        int high = numRows() - 1;
-        int first_row = -1;
-        while (low <= high) {
-            int mid = low + (high - low) / 2;
-
-            String[] row = getRow(mid);
-            while (row == null && mid <= high)
-                row = getRow(mid++);
-            if (row == null)
-                break;
+    // Read one record starting at |pos| into fields_, and return where the next record starts.
+    // Blank lines produce no fields.
+    private int readRecord(int pos, int end) {
+        num_fields_ = 0;
+        while (pos < end && (text_[pos] == '\r' || text_[pos] == '\n'))
+            pos++;
+        if (pos == end)
+            return end;
 
-            String value = row[key_index].substring(
-                    0,
-                    Math.min(prefix.length(), row[key_index].length()));
-            int cc = value.compareToIgnoreCase(prefix);
-            if (cc == 0) {
-                // Keep searching left to find the first occurrence.
-                first_row = mid;
-                high = mid - 1;
-            } else if (cc > 0) {
-                high = mid - 1;
+        while (true) {
+            int start;
+            int field_end;
+            int escaped = 0;
+            if (pos < end && text_[pos] == '"') {
+                // Quoted: runs to the next quote that isn't doubled.
+                pos++;
+                start = pos;
+                while (pos < end) {
+                    if (text_[pos] == '"') {
+                        if (pos + 1 < end && text_[pos + 1] == '"') {
+                            escaped = 1;
+                            pos += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    pos++;
+                }
+                field_end = pos;
+                if (pos < end)
+                    pos++;
+                // Anything between the closing quote and the next separator is ignored.
+                while (pos < end && text_[pos] != ',' && text_[pos] != '\r' &&
+                       text_[pos] != '\n')
+                {
+                    pos++;
+                }
             } else {
-                low = mid + 1;
+                start = pos;
+                while (pos < end && text_[pos] != ',' && text_[pos] != '\r' &&
+                       text_[pos] != '\n')
+                {
+                    pos++;
+                }
+                field_end = pos;
             }
-        }
-        if (first_row == -1)
-            return objects;
 
-        for (int i = first_row; i < lines_.length && objects.size() < max_count; i++) {
-            String[] row = getRow(i);
-            if (row == null)
+            if (num_fields_ * 3 == fields_.length)
+                fields_ = Arrays.copyOf(fields_, fields_.length * 2);
+            fields_[num_fields_ * 3] = start;
+            fields_[num_fields_ * 3 + 1] = field_end;
+            fields_[num_fields_ * 3 + 2] = escaped;
+            num_fields_++;
+
+            if (pos < end && text_[pos] == ',') {
+                pos++;
                 continue;
-            String value = row[key_index].substring(
-                    0,
-                    Math.min(prefix.length(), row[key_index].length()));
-            if (!value.equalsIgnoreCase(prefix))
-                break;
-            objects.add(lineToObject(row));
+            }
+            return pos;
         }
-        return objects;
     }
 
-    private int numRows() {
-        return lines_.length - 1;
+    private String getField(int column, int row) {
+        boolean escaped = escaped_.get(row * columns_.length + column);
+        return slice(starts_[column][row], ends_[column][row], escaped);
     }
-    private String[] getRow(int line_number) {
-        return parse(lines_[line_number + 1]);
+
+    private String slice(int start, int end, boolean escaped) {
+        String value = new String(text_, start, end - start);
+        if (escaped)
+            value = value.replace("\"\"", "\"");
+        return value;
     }
 
-    private String[] parse(String line) {
-        String[] parts = line.split(",");
-        if (keys_ == null || parts.length == keys_.size())
-            return parts;
+    private synchronized KeyIndex getIndex(String key_name) {
+        Integer column = keys_.get(key_name);
+        if (column == null)
+            return null;
+        KeyIndex index = indexes_.get(column);
+        if (index == null) {
+            index = new KeyIndex(column);
+            indexes_.put(column, index);
+        }
+        return index;
+    }
 
-        // Don't bother handling this yet, since IEXCloud doesn't export
-        // quotes in its CSV format.
-        Log.e(TAG, "Could not parse CSV line: " + line);
-        return null;
+    // Same folding as String.compareToIgnoreCase, so ordering matches it.
+    static char foldChar(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
     }
 
-    private Map<String, String> lineToObject(String[] components) {
-        Map<String, String> map = new HashMap<String, String>();
-        for (Map.Entry<String, Integer> item : keys_.entrySet())
-            map.put(item.getKey(), components[item.getValue()]);
-        return map;
+    static char[] fold(String s) {
+        char[] folded = new char[s.length()];
+        for (int i = 0; i < folded.length; i++)
+            folded[i] = foldChar(s.charAt(i));
+        return folded;
+    }
+
+    // One column's keys, case-folded into a single array, and the rows in key order.
+    private class KeyIndex {
+        final char[] keys;
+        final int[] key_starts;
+        final int[] rows;
+
+        KeyIndex(int column) {
+            int total = 0;
+            for (int row = 0; row < num_rows_; row++)
+                total += ends_[column][row] - starts_[column][row];
+
+            keys = new char[total];
+            key_starts = new int[num_rows_ + 1];
+            int pos = 0;
+            for (int row = 0; row < num_rows_; row++) {
+                key_starts[row] = pos;
+                String escaped = null;
+                if (escaped_.get(row * columns_.length + column))
+                    escaped = getField(column, row);
+                if (escaped != null) {
+                    for (int i = 0; i < escaped.length(); i++)
+                        keys[pos++] = foldChar(escaped.charAt(i));
+                } else {
+                    for (int i = starts_[column][row]; i < ends_[column][row]; i++)
+                        keys[pos++] = foldChar(text_[i]);
+                }
+            }
+            key_starts[num_rows_] = pos;
+
+            // The IEX reference data comes sorted by symbol, so usually there's nothing to do.
+            int[] order = new int[num_rows_];
+            boolean sorted = true;
+            for (int row = 0; row < num_rows_; row++) {
+                order[row] = row;
+                if (row > 0 && compareRows(row - 1, row) > 0)
+                    sorted = false;
+            }
+            if (!sorted) {
+                Integer[] boxed = new Integer[num_rows_];
+                for (int row = 0; row < num_rows_; row++)
+                    boxed[row] = row;
+                Arrays.sort(boxed, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return compareRows(a, b);
+                    }
+                });
+                for (int row = 0; row < num_rows_; row++)
+                    order[row] = boxed[row];
+            }
+            rows = order;
+        }
+
+        private int compareRows(int a, int b) {
+            int a_pos = key_starts[a];
+            int a_end = key_starts[a + 1];
+            int b_pos = key_starts[b];
+            int b_end = key_starts[b + 1];
+            while (a_pos < a_end && b_pos < b_end) {
+                char ca = keys[a_pos++];
+                char cb = keys[b_pos++];
+                if (ca != cb)
+                    return ca - cb;
+            }
+            return (a_end - a_pos) - (b_end - b_pos);
+        }
+
+        // Compare a row's key against a folded key. As a prefix, the row matches (returns 0) if
+        // its key starts with |key|.
+        int compare(int row, char[] key, boolean prefix) {
+            int pos = key_starts[row];
+            int end = key_starts[row + 1];
+            int len = end - pos;
+            int n = Math.min(len, key.length);
+            for (int i = 0; i < n; i++) {
+                char c = keys[pos + i];
+                if (c != key[i])
+                    return c - key[i];
+            }
+            if (prefix && len >= key.length)
+                return 0;
+            return len - key.length;
+        }
+
+        // The first position in rows whose key compares >= |key|.
+        int lowerBound(char[] key, boolean prefix) {
+            int low = 0;
+            int high = rows.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(rows[mid], key, prefix) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
     }
 }
@@ -0,0 +1,339 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+// Disk cache for provider endpoints whose responses rarely change, such as reference data and
+// symbol search. Only URLs with a registered policy are cached. Once an entry's TTL runs out it
+// is revalidated with a conditional GET, so unchanged data costs a 304 rather than a full
+// download.
+public class HttpCache {
+    private static final String TAG = "HttpCache";
+    private static final int MAX_ENTRIES = 256;
+
+    // Temp files and bodies without metadata this old were left behind by a crash.
+    private static final long STALE_FILE_MS = 60 * 60 * 1000;
+
+    // Use the server's Cache-Control max-age instead of a fixed TTL.
+    public static final long SERVER_TTL = -1;
+
+    private static HttpCache Instance;
+    private static List<Policy> Policies = new ArrayList<Policy>();
+
+    private File dir_;
+
+    private static class Policy {
+        final String prefix;
+        final long ttl_ms;
+
+        Policy(String prefix, long ttl_ms) {
+            this.prefix = prefix;
+            this.ttl_ms = ttl_ms;
+        }
+    }
+
+    public static class Entry {
+        private final File body_file_;
+        private final File meta_file_;
+        private final long ttl_ms_;
+        private Properties meta_ = new Properties();
+
+        private Entry(File dir, String key, long ttl_ms) {
+            body_file_ = new File(dir, key + ".body");
+            meta_file_ = new File(dir, key + ".meta");
+            ttl_ms_ = ttl_ms;
+        }
+
+        public boolean hasBody() {
+            return body_file_.exists() && meta_.containsKey("fetched");
+        }
+
+        public boolean isFresh() {
+            if (!hasBody())
+                return false;
+            long expires = Long.parseLong(meta_.getProperty("expires", "0"));
+            return System.currentTimeMillis() < expires;
+        }
+
+        public String getETag() {
+            return meta_.getProperty("etag");
+        }
+
+        public String getLastModified() {
+            return meta_.getProperty("last_modified");
+        }
+
+        public InputStream openBody() throws IOException {
+            return new FileInputStream(body_file_);
+        }
+    }
+
+    public static synchronized void install(File dir) {
+        if (!dir.exists() && !dir.mkdirs())
+            Log.e(TAG, "Could not create cache directory: " + dir);
+        Instance = new HttpCache(dir);
+    }
+
+    public static synchronized HttpCache get() {
+        return Instance;
+    }
+
+    // Cache responses for URLs starting with the given prefix. Registering the same prefix
+    // again replaces its TTL.
+    public static void setPolicy(String url_prefix, long ttl_ms) {
+        synchronized (Policies) {
+            for (int i = 0; i < Policies.size(); i++) {
+                if (Policies.get(i).prefix.equals(url_prefix)) {
+                    Policies.set(i, new Policy(url_prefix, ttl_ms));
+                    return;
+                }
+            }
+            Policies.add(new Policy(url_prefix, ttl_ms));
+        }
+    }
+
+    private HttpCache(File dir) {
+        dir_ = dir;
+    }
+
+    // Returns null if the URL should not be cached.
+    public Entry lookup(URL url) {
+        Policy policy = findPolicy(url.toString());
+        if (policy == null)
+            return null;
+
+        Entry entry = new Entry(dir_, hash(url.toString()), policy.ttl_ms);
+        try (FileInputStream fs = new FileInputStream(entry.meta_file_)) {
+            entry.meta_.load(fs);
+        } catch (IOException e) {
+            // No entry yet.
+        }
+        return entry;
+    }
+
+    // The server said our copy is still good. If it also says not to keep it, the entry is
+    // left stale, so it's revalidated again next time.
+    public void revalidated(Entry entry, HttpURLConnection connection) {
+        if (!isStorable(connection))
+            return;
+        updateMeta(entry, connection);
+        writeMeta(entry);
+    }
+
+    public void store(Entry entry, HttpURLConnection connection, ByteBody body) {
+        // Decided before anything is written, so a response we may not keep never hits the disk.
+        if (!isStorable(connection)) {
+            remove(entry);
+            return;
+        }
+
+        // Each write gets its own temp file, since two requests for the same URL can race.
+        File temp;
+        try {
+            temp = File.createTempFile(entry.body_file_.getName(), ".tmp", dir_);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create cache entry: " + e.getMessage());
+            return;
+        }
+        try (FileOutputStream fs = new FileOutputStream(temp)) {
+            body.writeTo(fs);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write cache entry: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(entry.body_file_)) {
+            Log.e(TAG, "Could not replace cache entry");
+            temp.delete();
+            return;
+        }
+
+        entry.meta_.clear();
+        updateMeta(entry, connection);
+        writeMeta(entry);
+        trim();
+    }
+
+    private void updateMeta(Entry entry, HttpURLConnection connection) {
+        long now = System.currentTimeMillis();
+        long ttl = entry.ttl_ms_;
+        if (ttl == SERVER_TTL)
+            ttl = getMaxAge(connection.getHeaderField("Cache-Control"));
+
+        entry.meta_.setProperty("fetched", Long.toString(now));
+        entry.meta_.setProperty("expires", Long.toString(now + ttl));
+
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null)
+            entry.meta_.setProperty("etag", etag);
+        String last_modified = connection.getHeaderField("Last-Modified");
+        if (last_modified != null)
+            entry.meta_.setProperty("last_modified", last_modified);
+    }
+
+    private void writeMeta(Entry entry) {
+        File temp;
+        try {
+            temp = File.createTempFile(entry.meta_file_.getName(), ".tmp", dir_);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create cache metadata: " + e.getMessage());
+            return;
+        }
+        try (FileOutputStream fs = new FileOutputStream(temp)) {
+            entry.meta_.store(fs, "");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write cache metadata: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(entry.meta_file_)) {
+            Log.e(TAG, "Could not replace cache metadata");
+            temp.delete();
+        }
+    }
+
+    private void remove(Entry entry) {
+        deleteFile(entry.body_file_);
+        deleteFile(entry.meta_file_);
+    }
+
+    // Responses the server doesn't want kept, or that differ by request headers other than the
+    // encoding we always ask for, aren't cached. Private responses are fine, since this cache
+    // only ever serves the one user it belongs to.
+    private static boolean isStorable(HttpURLConnection connection) {
+        String cache_control = connection.getHeaderField("Cache-Control");
+        if (cache_control != null && cache_control.toLowerCase(Locale.ROOT).contains("no-store"))
+            return false;
+        String vary = connection.getHeaderField("Vary");
+        if (vary == null)
+            return true;
+        for (String header : vary.split(",")) {
+            header = header.trim();
+            if (!header.isEmpty() && !header.equalsIgnoreCase("Accept-Encoding"))
+                return false;
+        }
+        return true;
+    }
+
+    // Drop the least recently fetched entries once the cache grows too large. An entry's body
+    // and metadata are deleted together. Temp files belong to writes in progress, so they're
+    // only cleaned up once they're stale.
+    private void trim() {
+        File[] files = dir_.listFiles();
+        if (files == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        List<File> metas = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".meta")) {
+                metas.add(file);
+            } else if (now - file.lastModified() > STALE_FILE_MS) {
+                if (name.endsWith(".tmp"))
+                    deleteFile(file);
+                else if (name.endsWith(".body") && !metaFileFor(file).exists())
+                    deleteFile(file);
+            }
+        }
+        if (metas.size() <= MAX_ENTRIES)
+            return;
+
+        File[] sorted = metas.toArray(new File[metas.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < sorted.length - MAX_ENTRIES; i++) {
+            String name = sorted[i].getName();
+            String key = name.substring(0, name.length() - ".meta".length());
+            deleteFile(new File(dir_, key + ".body"));
+            deleteFile(sorted[i]);
+        }
+    }
+
+    private File metaFileFor(File body_file) {
+        String name = body_file.getName();
+        String key = name.substring(0, name.length() - ".body".length());
+        return new File(dir_, key + ".meta");
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete())
+            Log.e(TAG, "Could not delete cache file: " + file);
+    }
+
+    private static long getMaxAge(String cache_control) {
+        if (cache_control == null)
+            return 0;
+        for (String directive : cache_control.split(",")) {
+            directive = directive.trim();
+            if (!directive.startsWith("max-age="))
+                continue;
+            try {
+                return Long.parseLong(directive.substring(8)) * 1000;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private static Policy findPolicy(String url) {
+        synchronized (Policies) {
+            for (Policy policy : Policies) {
+                if (url.startsWith(policy.prefix))
+                    return policy;
+            }
+        }
+        return null;
+    }
+
+    private static String hash(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : bytes)
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+}
@@ -0,0 +1,255 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import net.alliedmods.quotes.HttpCodeException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+// All provider traffic goes through here. Connections are left open after a successful request,
+// so the platform can reuse the socket (and its TLS session) for the next request to the same
+// host instead of paying for a new handshake. Responses are requested gzipped and decompressed
+// as they stream in. Endpoints registered with HttpCache are served from disk or revalidated.
+// Bodies are read as bytes into pooled buffers and only decoded, as UTF-8, if a caller wants text.
+public class HttpClient {
+    private static final int TIMEOUT_MS = 10000;
+
+    static {
+        // Batches to the same provider run in parallel, so keep a few more idle sockets around
+        // than the default.
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", "8");
+    }
+
+    // Consumes a response body. Readers may stop early; whatever is left is discarded.
+    public interface BodyReader<T> {
+        public T read(InputStream body) throws IOException;
+    }
+
+    public static String get(URL url, Map<String, String> headers) throws IOException {
+        try (ByteBody body = getBody(url, headers)) {
+            return body.decodeUtf8();
+        }
+    }
+
+    private static final BodyReader<ByteBody> RawBody = new BodyReader<ByteBody>() {
+        @Override
+        public ByteBody read(InputStream body) throws IOException {
+            return ByteBody.read(body);
+        }
+    };
+
+    // Returns the raw body; the caller must close it.
+    public static ByteBody getBody(URL url, Map<String, String> headers) throws IOException {
+        return get(url, headers, RawBody);
+    }
+
+    public static ByteBody getBody(URL url, Map<String, String> headers,
+                                   Map<String, String> validators) throws IOException
+    {
+        return get(url, headers, RawBody, validators);
+    }
+
+    public static <T> T get(URL url, Map<String, String> headers, BodyReader<T> reader)
+            throws IOException
+    {
+        return get(url, headers, reader, null);
+    }
+
+    // If validators is given, the response's ETag and Last-Modified are copied into it, so a
+    // caller that keeps its own copy of the data can revalidate it later. Such a caller gets a
+    // 304 back as an HttpCodeException.
+    @SuppressWarnings("unchecked")
+    public static <T> T get(URL url, Map<String, String> headers, BodyReader<T> reader,
+                            Map<String, String> validators) throws IOException
+    {
+        HttpCache cache = HttpCache.get();
+        HttpCache.Entry entry = cache != null ? cache.lookup(url) : null;
+        if (entry != null && entry.isFresh())
+            return readCached(entry, reader);
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        final WeakReference<HttpURLConnection> con_ref =
+                new WeakReference<HttpURLConnection>(connection);
+        ICancelable cancel_task = new ICancelable() {
+            @Override
+            public void onCancel() {
+                HttpURLConnection con = con_ref.get();
+                if (con != null)
+                    con.disconnect();
+            }
+        };
+        IThread.addCancelTask(cancel_task);
+
+        boolean reusable = false;
+        try {
+            connection.setRequestMethod("GET");
+            connection.setRequestProperty("charset", "utf-8");
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            connection.setRequestProperty("Connection", "keep-alive");
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet())
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (entry != null && entry.hasBody()) {
+                if (entry.getETag() != null)
+                    connection.setRequestProperty("If-None-Match", entry.getETag());
+                if (entry.getLastModified() != null)
+                    connection.setRequestProperty("If-Modified-Since", entry.getLastModified());
+            }
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.connect();
+
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null && entry.hasBody()) {
+                drain(connection.getInputStream());
+                reusable = true;
+                cache.revalidated(entry, connection);
+                return readCached(entry, reader);
+            }
+            if (code != 200) {
+                // Consume the error body so the connection can still be reused.
+                InputStream error = connection.getErrorStream();
+                if (error != null) {
+                    drain(error);
+                    reusable = true;
+                }
+                throw new HttpCodeException(code, retryAfterMs(connection));
+            }
+            if (validators != null) {
+                copyHeader(connection, "ETag", validators);
+                copyHeader(connection, "Last-Modified", validators);
+            }
+
+            T result;
+            if (entry != null) {
+                // Cached responses are small enough to buffer, so store the body before
+                // handing it to the reader.
+                ByteBody body;
+                try (InputStream is = openBody(connection)) {
+                    body = ByteBody.read(is);
+                }
+                reusable = true;
+                cache.store(entry, connection, body);
+
+                // Raw callers get the buffered body itself rather than a second copy of it.
+                if (reader == RawBody)
+                    return (T) body;
+                try {
+                    result = reader.read(body.openStream());
+                } finally {
+                    body.close();
+                }
+            } else {
+                // Readers close what they're given, so hand them a view that leaves the body
+                // open; whatever they didn't read can then be drained before it's closed.
+                InputStream is = openBody(connection);
+                try {
+                    result = reader.read(new KeepOpen(is));
+                } catch (IOException e) {
+                    is.close();
+                    throw e;
+                }
+                reusable = drainQuietly(is);
+            }
+            return result;
+        } finally {
+            IThread.removeCancelTask(cancel_task);
+
+            // Closing a fully read body returns the socket to the pool; only tear the
+            // connection down if something went wrong partway through.
+            if (!reusable)
+                connection.disconnect();
+        }
+    }
+
+    private static void copyHeader(HttpURLConnection connection, String name,
+                                   Map<String, String> out)
+    {
+        String value = connection.getHeaderField(name);
+        if (value != null)
+            out.put(name, value);
+    }
+
+    // Only the delay-seconds form of Retry-After is understood.
+    private static long retryAfterMs(HttpURLConnection connection) {
+        String value = connection.getHeaderField("Retry-After");
+        if (value == null)
+            return -1;
+        try {
+            return Math.max(0, Long.parseLong(value.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static <T> T readCached(HttpCache.Entry entry, BodyReader<T> reader)
+            throws IOException
+    {
+        try (InputStream is = entry.openBody()) {
+            return reader.read(is);
+        }
+    }
+
+    private static InputStream openBody(HttpURLConnection connection) throws IOException {
+        InputStream is = connection.getInputStream();
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+            return new GZIPInputStream(is);
+        return is;
+    }
+
+    // The result has already been read, so a failure here only costs the connection.
+    private static boolean drainQuietly(InputStream is) {
+        try {
+            drain(is);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static class KeepOpen extends FilterInputStream {
+        KeepOpen(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void drain(InputStream is) throws IOException {
+        byte[] buffer = BufferPool.acquire();
+        try {
+            while (is.read(buffer) != -1)
+                continue;
+        } finally {
+            BufferPool.release(buffer);
+            is.close();
+        }
+    }
+}
@@ -76,16 +76,22 @@ public class IThread
     }
 
     private void interrupt() {
+        cancelThread(thread_);
+    }
+
+    // Abort whatever cancelable work (such as an HTTP request) the given thread is blocked on,
+    // and interrupt it. The thread itself keeps running.
+    public static void cancelThread(Thread thread) {
         synchronized (CancelTask) {
-            WeakReference<ICancelable> task_ref = CancelTask.get(thread_.getId());
+            WeakReference<ICancelable> task_ref = CancelTask.get(thread.getId());
             if (task_ref != null) {
                 ICancelable task = task_ref.get();
                 if (task != null)
                     task.onCancel();
             }
-            CancelTask.remove(thread_.getId());
+            CancelTask.remove(thread.getId());
         }
-        thread_.interrupt();
+        thread.interrupt();
     }
 
     public static void addCancelTask(ICancelable task) {
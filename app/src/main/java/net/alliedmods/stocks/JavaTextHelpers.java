@@ -0,0 +1,136 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import java.util.Arrays;
+
+// Pure-Java versions of the native helpers. Results must match natives.cpp exactly.
+class JavaTextHelpers extends TextHelpers {
+    private static final char REPLACEMENT = '\uFFFD';
+
+    @Override
+    String decodeUtf8(byte[] buffer) {
+        // A UTF-8 sequence never decodes to more UTF-16 units than it has bytes.
+        char[] out = new char[buffer.length];
+        int n = decodeUtf8(buffer, out);
+        return new String(out, 0, n);
+    }
+
+    @Override
+    int decodeUtf8(byte[] buffer, char[] out) {
+        int n = 0;
+        int i = 0;
+        int len = buffer.length;
+        while (i < len) {
+            // ASCII runs are the common case, so keep that loop as tight as possible.
+            while (i < len && buffer[i] >= 0)
+                out[n++] = (char)buffer[i++];
+            if (i >= len)
+                break;
+
+            int lead = buffer[i] & 0xff;
+            int need;
+            int cp;
+            int lo = 0x80;
+            int hi = 0xbf;
+            if (lead < 0xc2 || lead > 0xf4) {
+                // Stray continuation byte, overlong 2-byte lead, or out of range.
+                out[n++] = REPLACEMENT;
+                i++;
+                continue;
+            } else if (lead < 0xe0) {
+                need = 1;
+                cp = lead & 0x1f;
+            } else if (lead < 0xf0) {
+                need = 2;
+                cp = lead & 0x0f;
+                if (lead == 0xe0)
+                    lo = 0xa0;  // Overlong.
+                else if (lead == 0xed)
+                    hi = 0x9f;  // Surrogates.
+            } else {
+                need = 3;
+                cp = lead & 0x07;
+                if (lead == 0xf0)
+                    lo = 0x90;  // Overlong.
+                else if (lead == 0xf4)
+                    hi = 0x8f;  // Above U+10FFFF.
+            }
+
+            // Consume continuation bytes until one is out of range; everything consumed so far
+            // is then replaced by a single U+FFFD.
+            int j = i + 1;
+            boolean ok = true;
+            for (int k = 0; k < need; k++) {
+                if (j >= len) {
+                    ok = false;
+                    break;
+                }
+                int c = buffer[j] & 0xff;
+                if (c < lo || c > hi) {
+                    ok = false;
+                    break;
+                }
+                cp = (cp << 6) | (c & 0x3f);
+                lo = 0x80;
+                hi = 0xbf;
+                j++;
+            }
+            i = j;
+
+            if (!ok) {
+                out[n++] = REPLACEMENT;
+            } else if (cp >= 0x10000) {
+                out[n++] = Character.highSurrogate(cp);
+                out[n++] = Character.lowSurrogate(cp);
+            } else {
+                out[n++] = (char)cp;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    int[] indexLines(char[] text, int length) {
+        int[] bounds = new int[64];
+        int count = 0;
+        int start = -1;
+        for (int i = 0; i < length; i++) {
+            char c = text[i];
+            if (c == '\r' || c == '\n') {
+                if (start >= 0) {
+                    if (count + 2 > bounds.length)
+                        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                    bounds[count++] = start;
+                    bounds[count++] = i;
+                    start = -1;
+                }
+                continue;
+            }
+            if (start < 0)
+                start = i;
+        }
+        if (start >= 0) {
+            if (count + 2 > bounds.length)
+                bounds = Arrays.copyOf(bounds, bounds.length + 2);
+            bounds[count++] = start;
+            bounds[count++] = length;
+        }
+        return Arrays.copyOf(bounds, count);
+    }
+}
@@ -0,0 +1,60 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+// The lines of a decoded text, kept as one char array plus the bounds of each line, rather than
+// as a String apiece. A line only becomes a String when something asks for it. Lines end at CR
+// or LF, and empty lines are dropped.
+public class LineIndex {
+    private char[] text_;
+    // Start and end offsets of each line, in pairs.
+    private int[] bounds_;
+
+    LineIndex(char[] text, int[] bounds) {
+        text_ = text;
+        bounds_ = bounds;
+    }
+
+    public static LineIndex decode(byte[] utf8) {
+        TextHelpers helpers = TextHelpers.get();
+        char[] text = new char[utf8.length];
+        int length = helpers.decodeUtf8(utf8, text);
+        return new LineIndex(text, helpers.indexLines(text, length));
+    }
+
+    public int size() {
+        return bounds_.length / 2;
+    }
+
+    public char[] getText() {
+        return text_;
+    }
+
+    public int getStart(int line) {
+        return bounds_[line * 2];
+    }
+
+    public int getEnd(int line) {
+        return bounds_[line * 2 + 1];
+    }
+
+    public String getLine(int line) {
+        int start = getStart(line);
+        return new String(text_, start, getEnd(line) - start);
+    }
+}
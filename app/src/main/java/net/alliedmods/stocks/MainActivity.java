@@ -17,19 +17,28 @@
 // along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package net.alliedmods.stocks;
 
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
-import android.view.Gravity;
-import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
-import android.widget.LinearLayout;
+import android.view.ViewTreeObserver;
+import android.widget.EditText;
+import android.widget.PopupMenu;
 import android.widget.TextView;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.core.content.res.ResourcesCompat;
+import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import net.alliedmods.quotes.IQuoteService;
@@ -38,7 +47,6 @@ import net.alliedmods.quotes.QuoteRequest;
 import net.alliedmods.quotes.QuoteResult;
 import net.alliedmods.quotes.TaskToken;
 
-import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
@@ -49,37 +57,89 @@ import java.util.Map;
 
 public class MainActivity extends AppCompatActivity {
     static final private String TAG = "MainActivity";
+    static final private int MSG_QUOTE = 1;
+    static final private int MSG_BATCH_COMPLETE = 2;
+    static final private int MENU_NEW_WATCHLIST = -1;
+
+    // When switching lists, quotes fetched this recently (say, by the list we just left) are
+    // shown from the cache rather than fetched again.
+    static final private long SHARED_QUOTE_MS = 60 * 1000;
+
+    // The first frame is drawn before settings have loaded, with this many placeholder rows.
+    // Roughly a screenful of real rows is inflated in the background meanwhile.
+    static final private int SKELETON_ROWS = 8;
+    static final private int PREINFLATE_ROWS = 12;
 
     private Settings settings_;
     private IQuoteService quote_service_;
     private QuoteFetcher quote_fetcher_;
 
-    // Map symbol to view rows.
-    private Map<String, View> stock_rows_ = new HashMap<String, View>();
+    // The rows last given to the adapter, and where each symbol is in them.
+    private StockListAdapter adapter_;
+    private List<StockListAdapter.Row> rows_ = new ArrayList<StockListAdapter.Row>();
+    private Map<String, Integer> row_index_ = new HashMap<String, Integer>();
+    private boolean submit_pending_ = false;
+
     private TaskToken refresh_task_;
     private SwipeRefreshLayout refresh_view_;
-
-    enum ChangeBoxMode {
-        Value,
-        Percent
-    };
-    ChangeBoxMode changebox_mode_ = ChangeBoxMode.Value;
+    private Handler quote_handler_;
+    private QuoteFetcher.OnQuery quote_callback_;
+    private boolean started_ = false;
+    private boolean reported_first_price_ = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        Trace.beginSection("MainActivity.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        settings_ = StockApplication.getSettings();
-    }
+        quote_handler_ = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                return handleQuoteMessage(msg);
+            }
+        });
+        quote_callback_ = new QuoteFetcher.OnQuery() {
+            @Override
+            public void onQuote(QuoteResult result, int task_id) {
+                // The result is handed over as-is; nothing touches it off the main thread
+                // once it has been delivered.
+                Message msg = Message.obtain(quote_handler_, MSG_QUOTE, task_id, 0, result);
+                msg.setAsynchronous(true);
+                msg.sendToTarget();
+            }
 
-    @Override
-    protected void onStart() {
-        super.onStart();
+            @Override
+            public void onBatchComplete(Exception e, int task_id) {
+                Message msg = Message.obtain(quote_handler_, MSG_BATCH_COMPLETE, task_id, 0, e);
+                msg.setAsynchronous(true);
+                msg.sendToTarget();
+            }
+        };
 
-        if (!initializeQuoteService())
-            return;
-        populate();
+        LinearLayoutManager layout = new LinearLayoutManager(this);
+        final RecyclerView container = (RecyclerView)findViewById(R.id.stock_list);
+        container.setLayoutManager(layout);
+
+        DividerItemDecoration decoration = new DividerItemDecoration(
+                container.getContext(), layout.getOrientation());
+        decoration.setDrawable(ContextCompat.getDrawable(this, R.drawable.divider_line));
+        container.addItemDecoration(decoration);
+
+        adapter_ = new StockListAdapter(this);
+        container.setAdapter(adapter_);
+        adapter_.showSkeleton(SKELETON_ROWS);
+        adapter_.preinflateRows(container, PREINFLATE_ROWS);
+
+        container.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                container.getViewTreeObserver().removeOnPreDrawListener(this);
+                StockApplication.logStartupMarker("first frame");
+                return true;
+            }
+        });
 
         View view = findViewById(R.id.settings_button);
         view.setOnClickListener(new View.OnClickListener() {
@@ -97,6 +157,14 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
+        view = findViewById(R.id.title);
+        view.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showWatchlistMenu(v);
+            }
+        });
+
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("LLLL d");
         TextView text = findViewById(R.id.subtitle);
         text.setText(LocalDate.now().format(formatter));
@@ -105,9 +173,37 @@ public class MainActivity extends AppCompatActivity {
         refresh_view_.setOnRefreshListener(new SwipeRefreshLayout.OnRefreshListener() {
             @Override
             public void onRefresh() {
-                refresh();
+                refresh(true);
             }
         });
+
+        StockApplication.whenReady(new Runnable() {
+            @Override
+            public void run() {
+                onSettingsReady();
+            }
+        });
+        Trace.endSection();
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        started_ = true;
+        if (settings_ != null)
+            startSession();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        started_ = false;
+
+        // The process may be killed any time after this, so get pending saves going now. They
+        // are written on the writer thread; the UI thread doesn't wait for the disk.
+        if (settings_ != null)
+            settings_.startFlush();
     }
 
     @Override
@@ -117,92 +213,92 @@ public class MainActivity extends AppCompatActivity {
             quote_fetcher_.shutdown();
     }
 
+    private void onSettingsReady() {
+        if (isDestroyed())
+            return;
+        settings_ = StockApplication.getSettings();
+        if (started_)
+            startSession();
+    }
+
+    private void startSession() {
+        SpeculativeRefresh speculative = StockApplication.takeSpeculativeRefresh();
+        if (speculative != null) {
+            if (speculative.getWatchlistId() == settings_.getActiveWatchlist().getId()) {
+                attachSpeculativeRefresh(speculative);
+                return;
+            }
+            speculative.abandon();
+        }
+
+        if (!initializeQuoteService())
+            return;
+        populate(true);
+    }
+
+    // Pick up the refresh StockApplication started at launch, instead of starting another.
+    private void attachSpeculativeRefresh(SpeculativeRefresh speculative) {
+        quote_service_ = speculative.getService();
+        quote_fetcher_ = speculative.getFetcher();
+
+        buildRows();
+        cancelRefresh();
+        refresh_task_ = speculative.attach(quote_callback_);
+        if (!refresh_task_.done())
+            refresh_view_.setRefreshing(true);
+    }
+
     private boolean initializeQuoteService() {
         quote_service_ = settings_.createQuoteService();
         if (quote_service_ == null) {
             LaunchSettingsActivity();
             return false;
         }
-        quote_fetcher_ = new QuoteFetcher(quote_service_);
+        quote_fetcher_ = new QuoteFetcher(quote_service_, settings_.getQuotaGovernor());
         return true;
     }
 
-    private void populate() {
-        Map<String, CachedQuote> cachedQuotes = settings_.getCachedQuotes();
-
-        LinearLayout container = (LinearLayout)findViewById(R.id.stock_list);
-        container.removeAllViews();
-
-        LayoutInflater inflater = getLayoutInflater();
-        String[] symbols = settings_.getStockSymbols();
-        for (String symbol : symbols) {
-            CachedQuote quote = cachedQuotes.get(symbol);
-            View view = addStockRow(inflater, container, symbol);
-            stock_rows_.put(symbol, view);
-            updateStockRow(symbol, quote);
-            container.addView(inflater.inflate(R.layout.divider_line, null));
-        }
-
-        refresh();
+    private void populate(boolean refetch_all) {
+        buildRows();
+        refresh(refetch_all);
     }
 
-    private View addStockRow(LayoutInflater inflater, LinearLayout container, String symbol) {
-        View root = inflater.inflate(R.layout.stock_row, null);
+    // Only the active watchlist's rows are built, and RecyclerView only binds the visible ones.
+    private void buildRows() {
+        TextView title = findViewById(R.id.title);
+        title.setText(settings_.getActiveWatchlist().getName());
 
-        TextView symbol_name = (TextView)root.findViewById(R.id.symbol_name);
-        symbol_name.setText(symbol);
-
-        View changebox = root.findViewById(R.id.change_box);
-        changebox.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                flipChangeBoxMode();
-            }
-        });
-
-        container.addView(root);
-        return root;
+        rows_.clear();
+        row_index_.clear();
+        for (String symbol : settings_.getStockSymbols()) {
+            row_index_.put(symbol, rows_.size());
+            rows_.add(new StockListAdapter.Row(symbol, settings_.getCachedQuote(symbol)));
+        }
+        submitRows();
     }
 
-    private void refresh() {
+    private void refresh(boolean refetch_all) {
         cancelRefresh();
 
+        long now = SystemClock.elapsedRealtime();
         List<QuoteRequest> requests = new ArrayList<QuoteRequest>();
-        for (Map.Entry<String, View> entry : stock_rows_.entrySet()) {
-            CachedQuote cache = settings_.getCachedQuotes().get(entry.getKey());
+        for (StockListAdapter.Row row : rows_) {
+            CachedQuote cache = settings_.getCachedQuote(row.symbol);
+            if (!refetch_all && cache != null && cache.fetchTime != 0 &&
+                now - cache.fetchTime < SHARED_QUOTE_MS)
+            {
+                continue;
+            }
             String lastTradeDate = cache != null ? cache.lastTradeDate : null;
             boolean fetchName = (cache == null || cache.companyName == null);
-            requests.add(new QuoteRequest(entry.getKey(), lastTradeDate, fetchName));
+            requests.add(new QuoteRequest(row.symbol, lastTradeDate, fetchName));
+        }
+        if (requests.isEmpty()) {
+            refresh_view_.setRefreshing(false);
+            return;
         }
 
-        final MainActivity activity = this;
-
-        final Handler handler = new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                activity.handleQuoteMessage(msg.getData());
-            }
-        };
-
-        QuoteFetcher.OnQuery callback = new QuoteFetcher.OnQuery() {
-            @Override
-            public void onQuotes(List<QuoteResult> results, Exception e, int task_id) {
-                Message msg = new Message();
-                msg.setAsynchronous(true);
-
-                Bundle b = new Bundle();
-                b.putInt("count", results.size());
-                for (int i = 0; i < results.size(); i++)
-                    b.putBundle(Integer.toString(i), results.get(i).serialize());
-                if (e != null)
-                    b.putString("exception", e.getMessage());
-                b.putInt("task_id", task_id);
-                msg.setData(b);
-                handler.sendMessage(msg);
-            }
-        };
-
-        refresh_task_ = quote_fetcher_.fetch(requests, callback);
+        refresh_task_ = quote_fetcher_.fetch(requests, quote_callback_);
     }
 
     private void cancelRefresh() {
@@ -214,131 +310,89 @@ public class MainActivity extends AppCompatActivity {
         refresh_view_.setRefreshing(false);
     }
 
-    private void handleQuoteMessage(Bundle b) {
-        int task_id = b.getInt("task_id");
+    private boolean handleQuoteMessage(Message msg) {
+        int task_id = msg.arg1;
         if (refresh_task_ == null || refresh_task_.getTaskId() != task_id)
-            return;
+            return true;
+
+        if (msg.what == MSG_BATCH_COMPLETE) {
+            handleBatchComplete((Exception)msg.obj);
+            return true;
+        }
+
+        QuoteResult result = (QuoteResult)msg.obj;
+        CachedQuote quote = null;
+        if (result.success) {
+            quote = updateCache(result);
+        } else {
+            Log.e(TAG, "Could not query symbol " + result.symbol + ": " +
+                    result.error);
+            quote = maybeFetchCache(result.symbol);
+        }
+        updateStockRow(result.symbol, quote);
+        return true;
+    }
 
+    private void handleBatchComplete(Exception e) {
         refresh_task_.receivedTaskCompletion();
         if (refresh_task_.done()) {
             refresh_task_ = null;
             refresh_view_.setRefreshing(false);
         }
 
-        if (b.containsKey("exception")) {
-            Log.e(TAG, "Failed to query quotes: " + b.getString("exception"));
-            return;
-        }
-
-        int count = b.getInt("count");
-        for (int i = 0; i < count; i++) {
-            Bundle child = b.getBundle(Integer.toString(i));
-            QuoteResult result = QuoteResult.deserialize(child);
-            CachedQuote quote = null;
-            if (result.success) {
-                quote = updateCache(result);
-            } else {
-                Log.e(TAG, "Could not query symbol " + result.symbol + ": " +
-                        result.error);
-                quote = maybeFetchCache(result.symbol);
-            }
-            updateStockRow(result.symbol, quote);
-        }
+        if (e != null)
+            Log.e(TAG, "Failed to query quotes: " + e.getMessage());
     }
 
     private void updateStockRow(String symbol, CachedQuote quote) {
-        View view = stock_rows_.get(symbol);
-        if (view == null) {
-            Log.e(TAG, "Could not find View for symbol: " + symbol);
+        Integer pos = row_index_.get(symbol);
+        if (pos == null) {
+            Log.e(TAG, "Could not find row for symbol: " + symbol);
             return;
         }
-
-        BigDecimal price = CachedQuote.getPrice(quote);
-        TextView quote_box = (TextView) view.findViewById(R.id.quote);
-        if (price != null)
-            quote_box.setText(Utilities.formatPrice(price));
-        else
-            quote_box.setText("");
-
-        TextView name_box = (TextView)view.findViewById(R.id.company_name);
-        if (quote != null && quote.companyName != null)
-            name_box.setText(quote.companyName);
-
-        TextView changebox = (TextView)view.findViewById(R.id.change_box);
-        updateChangeBox(changebox, quote);
-    }
-
-    // CachedQuote here can be null.
-    private void updateChangeBox(TextView changebox, CachedQuote quote) {
-        String value;
-        BigDecimal change = null;
-        String change_text = null;
-        if (changebox_mode_ == ChangeBoxMode.Value) {
-            change = CachedQuote.getPriceChange(quote);
-            if (change != null)
-                change_text = Utilities.formatPrice(change);
-        } else if (changebox_mode_ == ChangeBoxMode.Percent) {
-            change = CachedQuote.getPercentChange(quote);
-            if (change != null)
-                change_text = Utilities.formatPercent(change);
-        }
-
-        int bgcolor_id;
-        int textcolor_id;
-        if (change == null) {
-            bgcolor_id = R.color.white;
-            textcolor_id = R.color.black;
-        } else {
-            if (change.signum() >= 0) {
-                change_text = "+" + change_text;
-                bgcolor_id = R.color.green;
-            } else {
-                bgcolor_id = R.color.red;
-            }
-            textcolor_id = R.color.almost_white;
-        }
-
-        int bgcolor = ResourcesCompat.getColor(getResources(), bgcolor_id, null);
-        Drawable pill_box = Utilities.getPillBox(this, bgcolor);
-        if (change_text != null) {
-            changebox.setText(change_text);
-            changebox.setGravity(Gravity.RIGHT);
-        } else {
-            changebox.setText("    -    ");
-            changebox.setGravity(Gravity.CENTER);
+        rows_.set(pos, new StockListAdapter.Row(symbol, quote));
+
+        // Quotes tend to arrive in bursts, so hand the adapter one new list for all of them.
+        if (!submit_pending_) {
+            submit_pending_ = true;
+            quote_handler_.post(new Runnable() {
+                @Override
+                public void run() {
+                    submitRows();
+                }
+            });
         }
-        changebox.setBackground(pill_box);
-        changebox.setTextColor(ResourcesCompat.getColor(getResources(), textcolor_id, null));
     }
 
-    private void flipChangeBoxMode() {
-        if (changebox_mode_ == ChangeBoxMode.Percent)
-            changebox_mode_ = ChangeBoxMode.Value;
-        else
-            changebox_mode_ = ChangeBoxMode.Percent;
-
-        Map<String, CachedQuote> quotes = settings_.getCachedQuotes();
-        for (Map.Entry<String, View> entry : stock_rows_.entrySet()) {
-            String symbol = entry.getKey();
-            View view = entry.getValue();
-            TextView changebox = (TextView)view.findViewById(R.id.change_box);
-            updateChangeBox(changebox, quotes.get(symbol));
+    private void submitRows() {
+        submit_pending_ = false;
+        adapter_.submitList(new ArrayList<StockListAdapter.Row>(rows_));
+
+        if (!reported_first_price_) {
+            for (StockListAdapter.Row row : rows_) {
+                if (row.quote != null && row.quote.getPrice() != null) {
+                    reported_first_price_ = true;
+                    StockApplication.logStartupMarker("first price");
+                    reportFullyDrawn();
+                    break;
+                }
+            }
         }
     }
 
     private CachedQuote updateCache(QuoteResult result) {
         CachedQuote quote = new CachedQuote(result.symbol);
         quote.lastTradeDate = result.lastTradeDate;
-        quote.recentQuote = result.recentQuote;
+        quote.setRecentQuote(result.recentQuote);
 
         // If the service didn't return a quote for the previous day, use the cached result. This
         // can happen if we're trying to avoid an extra query on APIs that have separate endpoints
         // for realtime queries vs historical.
-        CachedQuote prev_quote = settings_.getCachedQuotes().get(result.symbol);
+        CachedQuote prev_quote = settings_.getCachedQuote(result.symbol);
         if (result.prevDayQuote != null)
-            quote.prevDayQuote = result.prevDayQuote;
+            quote.setPrevDayQuote(result.prevDayQuote);
         else if (prev_quote != null && prev_quote.lastTradeDate.equals(result.lastTradeDate))
-            quote.prevDayQuote = prev_quote.prevDayQuote;
+            quote.copyPrevDayQuote(prev_quote);
 
         // Fill the company name in, if present.
         if (result.companyName != null)
@@ -347,12 +401,13 @@ public class MainActivity extends AppCompatActivity {
             quote.companyName = prev_quote.companyName;
 
         quote.cacheDate = LocalDate.now(Utilities.UTC).toString();
+        quote.fetchTime = SystemClock.elapsedRealtime();
         settings_.saveCachedQuote(quote);
         return quote;
     }
 
     private CachedQuote maybeFetchCache(String symbol) {
-        CachedQuote quote = settings_.getCachedQuotes().get(symbol);
+        CachedQuote quote = settings_.getCachedQuote(symbol);
         if (quote == null || quote.lastTradeDate == null)
             return null;
 
@@ -372,6 +427,62 @@ public class MainActivity extends AppCompatActivity {
         startActivity(intent);
     }
 
+    private void showWatchlistMenu(View anchor) {
+        if (settings_ == null)
+            return;
+
+        PopupMenu popup = new PopupMenu(this, anchor);
+        Menu menu = popup.getMenu();
+        int active_id = settings_.getActiveWatchlist().getId();
+        for (Watchlist list : settings_.getWatchlists()) {
+            MenuItem item = menu.add(R.id.watchlist_group, list.getId(), Menu.NONE,
+                                     list.getName());
+            item.setChecked(list.getId() == active_id);
+        }
+        menu.setGroupCheckable(R.id.watchlist_group, true, true);
+        menu.add(Menu.NONE, MENU_NEW_WATCHLIST, Menu.NONE, R.string.new_watchlist);
+
+        popup.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
+            @Override
+            public boolean onMenuItemClick(MenuItem item) {
+                if (item.getItemId() == MENU_NEW_WATCHLIST)
+                    promptNewWatchlist();
+                else
+                    switchWatchlist(item.getItemId());
+                return true;
+            }
+        });
+        popup.show();
+    }
+
+    private void promptNewWatchlist() {
+        final EditText name = new EditText(this);
+        name.setHint(R.string.watchlist_name_hint);
+        name.setSingleLine();
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.new_watchlist)
+                .setView(name)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String text = name.getText().toString().trim();
+                        if (text.isEmpty())
+                            return;
+                        switchWatchlist(settings_.createWatchlist(text).getId());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void switchWatchlist(int id) {
+        if (id == settings_.getActiveWatchlist().getId())
+            return;
+        settings_.setActiveWatchlist(id);
+        populate(false);
+    }
+
     private void LaunchSettingsActivity() {
         Intent intent = new Intent(this, SettingsActivity.class);
         startActivity(intent);
@@ -0,0 +1,40 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+// See natives.cpp. TextHelpers loads the library before creating one of these.
+class NativeTextHelpers extends TextHelpers {
+    @Override
+    String decodeUtf8(byte[] buffer) {
+        return fastDecodeUtf8(buffer);
+    }
+
+    @Override
+    int decodeUtf8(byte[] buffer, char[] out) {
+        return fastDecodeUtf8Into(buffer, out);
+    }
+
+    @Override
+    int[] indexLines(char[] text, int length) {
+        return fastIndexLines(text, length);
+    }
+
+    private native static String fastDecodeUtf8(byte[] buffer);
+    private native static int fastDecodeUtf8Into(byte[] buffer, char[] out);
+    private native static int[] fastIndexLines(char[] text, int length);
+}
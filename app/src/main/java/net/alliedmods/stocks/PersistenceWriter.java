@@ -0,0 +1,165 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Runs every disk write for Settings on one thread. Work is keyed, so saving the same thing
+// twice before the writer gets to it only writes it once, and the writer waits a moment after
+// the first request so that a burst of saves (such as a refresh delivering quotes one at a
+// time) ends up as a single write.
+public class PersistenceWriter extends IThread
+{
+    private static final String TAG = "PersistenceWriter";
+    private static final long COALESCE_MS = 250;
+
+    private LinkedHashMap<String, Runnable> pending_ = new LinkedHashMap<String, Runnable>();
+    private long first_pending_ms_;
+    private boolean flush_requested_ = false;
+
+    // Every schedule() call bumps scheduled_; written_ catches up once that work is on disk.
+    private long scheduled_ = 0;
+    private long written_ = 0;
+
+    public PersistenceWriter() {
+        thread_.setName(TAG);
+        thread_.start();
+    }
+
+    // Queues a write. If one is already queued under the same key, this replaces it.
+    public void schedule(String key, Runnable job) {
+        lock_.lock();
+        try {
+            if (pending_.isEmpty())
+                first_pending_ms_ = SystemClock.uptimeMillis();
+            pending_.put(key, job);
+            scheduled_++;
+            cv_.signalAll();
+        } finally {
+            lock_.unlock();
+        }
+    }
+
+    // Asks the writer to write everything pending now, without waiting for it to finish.
+    public void startFlush() {
+        lock_.lock();
+        try {
+            flush_requested_ = true;
+            cv_.signalAll();
+        } finally {
+            lock_.unlock();
+        }
+    }
+
+    // Writes whatever is pending and stops the thread. This doesn't interrupt the thread like
+    // IThread.shutdown() does: an interrupted write fails with ClosedByInterruptException, and
+    // the last coalesced write would be lost.
+    @Override
+    public void shutdown() {
+        lock_.lock();
+        try {
+            shutdown_ = true;
+            cv_.signalAll();
+        } finally {
+            lock_.unlock();
+        }
+
+        boolean interrupted = false;
+        while (thread_.isAlive()) {
+            try {
+                thread_.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    // Blocks until everything scheduled before this call has been written.
+    public void flush() {
+        lock_.lock();
+        try {
+            long target = scheduled_;
+            flush_requested_ = true;
+            cv_.signalAll();
+            while (written_ < target && thread_.isAlive())
+                cv_.awaitUninterruptibly();
+        } finally {
+            lock_.unlock();
+        }
+    }
+
+    @Override
+    protected void processThreadActions() {
+        lock_.lock();
+        try {
+            while (true) {
+                try {
+                    if (pending_.isEmpty()) {
+                        if (shutdown_)
+                            return;
+                        flush_requested_ = false;
+                        cv_.await();
+                        continue;
+                    }
+
+                    // Anything still queued at shutdown is written right away.
+                    long wait = first_pending_ms_ + COALESCE_MS - SystemClock.uptimeMillis();
+                    if (wait > 0 && !flush_requested_ && !shutdown_) {
+                        cv_.await(wait, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                List<Runnable> jobs = new ArrayList<Runnable>(pending_.values());
+                long batch = scheduled_;
+                pending_.clear();
+                flush_requested_ = false;
+                lock_.unlock();
+
+                try {
+                    for (Runnable job : jobs) {
+                        try {
+                            job.run();
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Write failed", e);
+                        }
+                    }
+                } finally {
+                    lock_.lock();
+                }
+                written_ = batch;
+                cv_.signalAll();
+            }
+        } finally {
+            // Don't leave anyone stuck in flush().
+            written_ = scheduled_;
+            cv_.signalAll();
+            lock_.unlock();
+        }
+    }
+}
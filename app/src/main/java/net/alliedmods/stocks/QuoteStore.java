@@ -0,0 +1,471 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Cached quotes, kept in a memory-mapped file so that opening it costs nothing and saving a
+// quote only rewrites that symbol's slot.
+//
+// The file is a header, then a hash table of fixed-size slots keyed by symbol (open addressing,
+// linear probing), then a string table. Strings are appended, never rewritten and never shared
+// between slots, so a replaced string is exactly that much garbage; when enough of the table is
+// dead, or the slots fill up, the whole file is rebuilt into a new one and renamed over the old.
+//
+//   header: magic, version, capacity, used, tombstones, strings_end, garbage, reserved
+//   slot:   flags, symbol hash, symbol, name, cache date, trade date (string offsets or -1),
+//           price, prev price (longs), price scale, prev price scale (bytes), padding
+//   string: u16 length, UTF-8 bytes
+public class QuoteStore {
+    private static final String TAG = "QuoteStore";
+
+    private static final int MAGIC = 0x53515453;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 48;
+    private static final int MIN_CAPACITY = 64;
+    private static final int MIN_STRING_SPACE = 16 * 1024;
+    private static final int MIN_GARBAGE_TO_COMPACT = 16 * 1024;
+
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_USED = 12;
+    private static final int H_TOMBSTONES = 16;
+    private static final int H_STRINGS_END = 20;
+    private static final int H_GARBAGE = 24;
+
+    private static final int S_FLAGS = 0;
+    private static final int S_HASH = 4;
+    private static final int S_SYMBOL = 8;
+    private static final int S_NAME = 12;
+    private static final int S_CACHE_DATE = 16;
+    private static final int S_TRADE_DATE = 20;
+    private static final int S_PRICE = 24;
+    private static final int S_PREV_PRICE = 32;
+    private static final int S_PRICE_SCALE = 40;
+    private static final int S_PREV_PRICE_SCALE = 41;
+
+    private static final int SLOT_EMPTY = 0;
+    private static final int SLOT_USED = 1;
+    private static final int SLOT_DELETED = 2;
+    private static final int SLOT_STATE_MASK = 0x3;
+    private static final int SLOT_HAS_PRICE = 0x10;
+    private static final int SLOT_HAS_PREV_PRICE = 0x20;
+
+    private File file_;
+    private FileChannel channel_;
+    private MappedByteBuffer map_;
+    private int capacity_;
+
+    private QuoteStore(File file) {
+        file_ = file;
+    }
+
+    // Opens the store, creating an empty one if the file is missing or unreadable.
+    public static QuoteStore open(File file) {
+        QuoteStore store = new QuoteStore(file);
+        try {
+            if (file.exists() && store.map())
+                return store;
+            store.rebuild(new ArrayList<CachedQuote>(), MIN_CAPACITY);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open quote store: " + e.getMessage());
+        }
+        return store;
+    }
+
+    // Replaces the entire contents of the store; used to migrate old data.
+    public synchronized void replaceAll(List<CachedQuote> quotes) throws IOException {
+        rebuild(quotes, capacityFor(quotes.size()));
+    }
+
+    public synchronized CachedQuote get(String symbol) {
+        if (map_ == null)
+            return null;
+        int slot = find(symbol);
+        if (slot < 0)
+            return null;
+        CachedQuote quote = readSlot(slotOffset(slot));
+        if (quote == null) {
+            // Keep whatever is still readable.
+            Log.e(TAG, "Quote store is damaged; rebuilding it");
+            try {
+                rebuild(readAll(), capacity_);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not rebuild quote store: " + e.getMessage());
+            }
+        }
+        return quote;
+    }
+
+    public synchronized void put(CachedQuote quote) {
+        if (map_ == null)
+            return;
+        try {
+            if (find(quote.symbol) < 0) {
+                // Keep the table at most three-quarters full, counting deleted slots.
+                int used = map_.getInt(H_USED);
+                int tombstones = map_.getInt(H_TOMBSTONES);
+                if ((used + tombstones + 1) * 4 > capacity_ * 3)
+                    rebuild(readAll(), capacityFor(used + 1));
+            }
+            store(quote);
+            maybeCompact();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save quote: " + e.getMessage());
+        }
+    }
+
+    public synchronized void remove(String symbol) {
+        if (map_ == null)
+            return;
+        int slot = find(symbol);
+        if (slot < 0)
+            return;
+        int offset = slotOffset(slot);
+        int garbage = 0;
+        for (int field : new int[] { S_SYMBOL, S_NAME, S_CACHE_DATE, S_TRADE_DATE })
+            garbage += stringSize(readString(map_.getInt(offset + field)));
+        map_.putInt(H_GARBAGE, map_.getInt(H_GARBAGE) + garbage);
+        map_.putInt(offset + S_FLAGS, SLOT_DELETED);
+        map_.putInt(H_USED, map_.getInt(H_USED) - 1);
+        map_.putInt(H_TOMBSTONES, map_.getInt(H_TOMBSTONES) + 1);
+    }
+
+    private void store(CachedQuote quote) throws IOException {
+        int slot = find(quote.symbol);
+        if (slot < 0) {
+            int offset = slotOffset(-(slot + 1));
+            if (map_.getInt(offset + S_FLAGS) == SLOT_DELETED)
+                map_.putInt(H_TOMBSTONES, map_.getInt(H_TOMBSTONES) - 1);
+            map_.putInt(H_USED, map_.getInt(H_USED) + 1);
+            map_.putInt(offset + S_HASH, quote.symbol.hashCode());
+            map_.putInt(offset + S_SYMBOL, appendString(quote.symbol));
+            map_.putInt(offset + S_NAME, -1);
+            map_.putInt(offset + S_CACHE_DATE, -1);
+            map_.putInt(offset + S_TRADE_DATE, -1);
+            map_.putInt(offset + S_FLAGS, SLOT_USED);
+            slot = -(slot + 1);
+        }
+        writeSlot(slotOffset(slot), quote);
+    }
+
+    // Writes changed pages back to the file.
+    public synchronized void sync() {
+        if (map_ != null)
+            map_.force();
+    }
+
+    // Returns the slot holding the symbol, or if there is none, -(slot + 1) for the slot it
+    // should go in.
+    private int find(String symbol) {
+        int hash = symbol.hashCode();
+        int mask = capacity_ - 1;
+        int insert_at = -1;
+        for (int i = 0; i < capacity_; i++) {
+            int slot = (mix(hash) + i) & mask;
+            int offset = slotOffset(slot);
+            int state = map_.getInt(offset + S_FLAGS) & SLOT_STATE_MASK;
+            if (state == SLOT_EMPTY)
+                return -((insert_at >= 0 ? insert_at : slot) + 1);
+            if (state == SLOT_DELETED) {
+                if (insert_at < 0)
+                    insert_at = slot;
+                continue;
+            }
+            if (map_.getInt(offset + S_HASH) == hash &&
+                symbol.equals(readString(map_.getInt(offset + S_SYMBOL))))
+            {
+                return slot;
+            }
+        }
+        return -(insert_at + 1);
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    // Returns null if the slot refers to strings outside the string table.
+    private CachedQuote readSlot(int offset) {
+        if (!isValidSlot(offset))
+            return null;
+        int flags = map_.getInt(offset + S_FLAGS);
+        CachedQuote quote = new CachedQuote(readString(map_.getInt(offset + S_SYMBOL)));
+        quote.companyName = readString(map_.getInt(offset + S_NAME));
+        quote.cacheDate = readString(map_.getInt(offset + S_CACHE_DATE));
+        quote.lastTradeDate = readString(map_.getInt(offset + S_TRADE_DATE));
+
+        CachedQuote.FixedPoint price = null;
+        CachedQuote.FixedPoint prev_price = null;
+        if ((flags & SLOT_HAS_PRICE) != 0) {
+            price = new CachedQuote.FixedPoint(map_.getLong(offset + S_PRICE),
+                                               map_.get(offset + S_PRICE_SCALE));
+        }
+        if ((flags & SLOT_HAS_PREV_PRICE) != 0) {
+            prev_price = new CachedQuote.FixedPoint(map_.getLong(offset + S_PREV_PRICE),
+                                                    map_.get(offset + S_PREV_PRICE_SCALE));
+        }
+        quote.setPrices(price, prev_price);
+        return quote;
+    }
+
+    private void writeSlot(int offset, CachedQuote quote) throws IOException {
+        // Strings go first, since appending one may remap the file.
+        int name = updateString(offset + S_NAME, quote.companyName);
+        int cache_date = updateString(offset + S_CACHE_DATE, quote.cacheDate);
+        int trade_date = updateString(offset + S_TRADE_DATE, quote.lastTradeDate);
+
+        int flags = SLOT_USED;
+        CachedQuote.FixedPoint price = quote.getPrice();
+        CachedQuote.FixedPoint prev_price = quote.getPrevPrice();
+        if (price != null) {
+            flags |= SLOT_HAS_PRICE;
+            map_.putLong(offset + S_PRICE, price.units);
+            map_.put(offset + S_PRICE_SCALE, (byte)price.scale);
+        }
+        if (prev_price != null) {
+            flags |= SLOT_HAS_PREV_PRICE;
+            map_.putLong(offset + S_PREV_PRICE, prev_price.units);
+            map_.put(offset + S_PREV_PRICE_SCALE, (byte)prev_price.scale);
+        }
+        map_.putInt(offset + S_NAME, name);
+        map_.putInt(offset + S_CACHE_DATE, cache_date);
+        map_.putInt(offset + S_TRADE_DATE, trade_date);
+        map_.putInt(offset + S_FLAGS, flags);
+    }
+
+    // Returns the string offset to store in a slot field, reusing the current one if the value
+    // hasn't changed.
+    private int updateString(int field, String value) throws IOException {
+        int current = map_.getInt(field);
+        String old_value = readString(current);
+        if (value == null ? old_value == null : value.equals(old_value))
+            return current;
+        map_.putInt(H_GARBAGE, map_.getInt(H_GARBAGE) + stringSize(old_value));
+        return value != null ? appendString(value) : -1;
+    }
+
+    private boolean isValidSlot(int offset) {
+        int strings_start = slotOffset(capacity_);
+        int strings_end = map_.getInt(H_STRINGS_END);
+        int symbol = map_.getInt(offset + S_SYMBOL);
+        return symbol >= 0 &&
+               isValidString(symbol, strings_start, strings_end) &&
+               isValidString(map_.getInt(offset + S_NAME), strings_start, strings_end) &&
+               isValidString(map_.getInt(offset + S_CACHE_DATE), strings_start, strings_end) &&
+               isValidString(map_.getInt(offset + S_TRADE_DATE), strings_start, strings_end);
+    }
+
+    private boolean isValidString(int offset, int strings_start, int strings_end) {
+        if (offset == -1)
+            return true;
+        if (offset < strings_start || offset > strings_end - 2)
+            return false;
+        int length = map_.getShort(offset) & 0xffff;
+        return length <= strings_end - offset - 2;
+    }
+
+    // Out-of-range offsets read as null; readSlot reports those slots as damaged.
+    private String readString(int offset) {
+        if (offset < 0)
+            return null;
+        if (!isValidString(offset, slotOffset(capacity_), map_.getInt(H_STRINGS_END)))
+            return null;
+        int length = map_.getShort(offset) & 0xffff;
+        byte[] bytes = new byte[length];
+        ByteBuffer view = map_.duplicate();
+        view.position(offset + 2);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int appendString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, 0xffff);
+        int offset = map_.getInt(H_STRINGS_END);
+        int end = offset + 2 + length;
+        if (end > map_.capacity())
+            grow(end);
+        map_.putShort(offset, (short)length);
+        ByteBuffer view = map_.duplicate();
+        view.position(offset + 2);
+        view.put(bytes, 0, length);
+        map_.putInt(H_STRINGS_END, end);
+        return offset;
+    }
+
+    // Space a string takes in the table, including its length.
+    private static int stringSize(String value) {
+        if (value == null)
+            return 0;
+        return 2 + Math.min(value.getBytes(StandardCharsets.UTF_8).length, 0xffff);
+    }
+
+    private List<CachedQuote> readAll() {
+        List<CachedQuote> quotes = new ArrayList<CachedQuote>();
+        for (int slot = 0; slot < capacity_; slot++) {
+            int offset = slotOffset(slot);
+            if ((map_.getInt(offset + S_FLAGS) & SLOT_STATE_MASK) != SLOT_USED)
+                continue;
+            CachedQuote quote = readSlot(offset);
+            if (quote != null)
+                quotes.add(quote);
+        }
+        return quotes;
+    }
+
+    private void maybeCompact() throws IOException {
+        int garbage = map_.getInt(H_GARBAGE);
+        int strings = map_.getInt(H_STRINGS_END) - slotOffset(capacity_);
+        if (garbage >= MIN_GARBAGE_TO_COMPACT && garbage * 2 > strings)
+            rebuild(readAll(), capacity_);
+    }
+
+    private static int capacityFor(int count) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 < count * 4 * 2)
+            capacity *= 2;
+        return capacity;
+    }
+
+    // Grows the string table in place; the slots don't move. Mapping past the end of the file
+    // extends it.
+    private void grow(int needed) throws IOException {
+        long size = Math.max((long)needed, (long)map_.capacity() * 2);
+        map_.force();
+        map_ = channel_.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map_.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private boolean map() throws IOException {
+        close();
+        RandomAccessFile raf = new RandomAccessFile(file_, "rw");
+        channel_ = raf.getChannel();
+        map_ = channel_.map(FileChannel.MapMode.READ_WRITE, 0, channel_.size());
+        map_.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (!isValidHeader()) {
+            Log.e(TAG, "Quote store is damaged or has an unknown format; starting over");
+            close();
+            return false;
+        }
+        capacity_ = map_.getInt(H_CAPACITY);
+
+        // Check every slot up front, so a damaged file is caught here rather than on the
+        // first lookup.
+        for (int slot = 0; slot < capacity_; slot++) {
+            int offset = slotOffset(slot);
+            int state = map_.getInt(offset + S_FLAGS) & SLOT_STATE_MASK;
+            if (state == SLOT_USED ? !isValidSlot(offset) : state > SLOT_DELETED) {
+                Log.e(TAG, "Quote store has a damaged slot; starting over");
+                close();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The slots must fit in the file, and the string table must lie between them and the end.
+    private boolean isValidHeader() {
+        long size = map_.capacity();
+        if (size < HEADER_SIZE ||
+            map_.getInt(H_MAGIC) != MAGIC ||
+            map_.getInt(H_VERSION) != VERSION)
+        {
+            return false;
+        }
+        int capacity = map_.getInt(H_CAPACITY);
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            return false;
+        long slots_end = HEADER_SIZE + (long)capacity * SLOT_SIZE;
+        int strings_end = map_.getInt(H_STRINGS_END);
+        return slots_end <= size && strings_end >= slots_end && strings_end <= size;
+    }
+
+    // Writes the given quotes into a fresh file and swaps it in.
+    private void rebuild(List<CachedQuote> quotes, int capacity) throws IOException {
+        // Size the string table so that filling it never needs to grow the file.
+        int string_space = MIN_STRING_SPACE;
+        for (CachedQuote quote : quotes) {
+            string_space += stringSize(quote.symbol) + stringSize(quote.companyName) +
+                            stringSize(quote.cacheDate) + stringSize(quote.lastTradeDate);
+        }
+        int size = slotOffset(capacity) + string_space;
+
+        File temp = new File(file_.getPath() + ".tmp");
+        temp.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.setLength(size);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            map.putInt(H_MAGIC, MAGIC);
+            map.putInt(H_VERSION, VERSION);
+            map.putInt(H_CAPACITY, capacity);
+            map.putInt(H_STRINGS_END, slotOffset(capacity));
+
+            // Fill the new file through the normal insert path.
+            MappedByteBuffer old_map = map_;
+            int old_capacity = capacity_;
+            map_ = map;
+            capacity_ = capacity;
+            try {
+                for (CachedQuote quote : quotes)
+                    store(quote);
+            } finally {
+                map_ = old_map;
+                capacity_ = old_capacity;
+            }
+            map.force();
+        }
+
+        close();
+        if (!temp.renameTo(file_))
+            throw new IOException("Could not replace " + file_.getName());
+        if (!map())
+            throw new IOException("Could not reopen " + file_.getName());
+    }
+
+    private void close() {
+        if (channel_ != null) {
+            try {
+                channel_.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close quote store: " + e.getMessage());
+            }
+        }
+        channel_ = null;
+        map_ = null;
+    }
+}
@@ -23,9 +23,11 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import net.alliedmods.quotes.AlphaVantage;
+import net.alliedmods.quotes.CoalescingQuoteService;
 import net.alliedmods.quotes.IQuoteService;
 import net.alliedmods.quotes.IexCloud;
 import net.alliedmods.quotes.Intrinio;
+import net.alliedmods.quotes.QuotaGovernor;
 import net.alliedmods.quotes.WorldTradingData;
 import net.alliedmods.quotes.YhFinance;
 
@@ -38,15 +40,36 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 public class Settings {
     static final private String TAG = "Settings";
+    private static final String QUOTE_STORE_FILE = "quotes.db";
+    private static final String LEGACY_QUOTES_FILE = "cached_quotes";
+    private static final String WATCHLIST_FILE = "watchlist";
+    private static final String WATCHLIST_INDEX_FILE = "watchlists";
+    private static final String DEFAULT_WATCHLIST_NAME = "Stocks";
+
     private Context cx_;
     private Map<String, CachedQuote> quote_cache_ = new HashMap<String, CachedQuote>();
-    private Properties quote_props_ = new Properties();
+    private QuoteStore quote_store_;
+    private List<Watchlist> watchlists_ = new ArrayList<Watchlist>();
+
+    // Symbols removed from a list whose quotes may not be shown anywhere else. Lists that
+    // haven't been loaded aren't read just to find out; these wait until every list has been.
+    private Set<String> maybe_unused_quotes_ = new HashSet<String>();
+    private Watchlist active_list_;
+    private SymbolRegistry symbols_;
+
+    // Quotes saved since the last write, or null for ones that were removed.
+    private Map<String, CachedQuote> dirty_quotes_ = new HashMap<String, CachedQuote>();
+    private PersistenceWriter writer_ = new PersistenceWriter();
+    private QuotaGovernor quota_governor_;
 
     public Settings(Context cx) {
         cx_ = cx;
@@ -54,13 +77,18 @@ public class Settings {
         loadCachedQuotes();
     }
 
-    public Map<String, CachedQuote> getCachedQuotes() {
-        return quote_cache_;
+    public synchronized QuotaGovernor getQuotaGovernor() {
+        if (quota_governor_ == null)
+            quota_governor_ = new QuotaGovernor(getCacheDir(), writer_);
+        return quota_governor_;
     }
 
     public IQuoteService createQuoteService() {
         String quote_api = getApiServiceName();
-        return createQuoteService(quote_api);
+        IQuoteService service = createQuoteService(quote_api);
+        if (service == null)
+            return null;
+        return new CoalescingQuoteService(service);
     }
 
     private IQuoteService createQuoteService(String quote_api) {
@@ -68,7 +96,7 @@ public class Settings {
             String api_key = getSharedPref("alphavantage_api_key", "");
             if (api_key.isEmpty())
                 return null;
-            return new AlphaVantage(api_key);
+            return new AlphaVantage(api_key, getQuotaGovernor());
         }
         if (quote_api.equals("iexcloud")) {
             String api_key = getSharedPref("iexcloud_api_key", "");
@@ -103,120 +131,210 @@ public class Settings {
         return getSharedPref("api_kind", "");
     }
 
-    public String[] getStockSymbols() {
-        if (!quote_props_.containsKey("symbols")) {
-            String[] defaults = getDefaultSymbols();
-            quote_props_.setProperty("symbols", String.join(",", defaults));
+    public synchronized List<Watchlist> getWatchlists() {
+        return new ArrayList<Watchlist>(watchlists_);
+    }
+
+    public synchronized Watchlist getActiveWatchlist() {
+        return active_list_;
+    }
+
+    // Symbol operations below all apply to the active list.
+    public synchronized void setActiveWatchlist(int id) {
+        for (Watchlist list : watchlists_) {
+            if (list.getId() == id) {
+                active_list_ = list;
+                symbols_ = list.getSymbols();
+                saveWatchlistIndex();
+                forgetUnusedQuotes();
+                return;
+            }
         }
-        String symbols = quote_props_.getProperty("symbols");
-        if (symbols.length() == 0)
-            return new String[]{};
-        return symbols.split(",");
     }
 
-    public void loadCachedQuotes() {
-        File file = getLocalFile("cached_quotes");
+    public synchronized Watchlist createWatchlist(String name) {
+        int id = 0;
+        for (Watchlist list : watchlists_)
+            id = Math.max(id, list.getId() + 1);
+
+        Watchlist list = newWatchlist(id, name);
+        watchlists_.add(list);
+        saveWatchlist(list);
+        saveWatchlistIndex();
+        return list;
+    }
+
+    // The returned array is shared, so it must not be modified.
+    public synchronized String[] getStockSymbols() {
+        return symbols_.toArray();
+    }
+
+    // Quotes are read from the store the first time they're asked for.
+    public synchronized CachedQuote getCachedQuote(String symbol) {
+        if (quote_cache_.containsKey(symbol))
+            return quote_cache_.get(symbol);
+        if (dirty_quotes_.containsKey(symbol))
+            return dirty_quotes_.get(symbol);
+        CachedQuote quote = quote_store_.get(symbol);
+        quote_cache_.put(symbol, quote);
+        return quote;
+    }
+
+    private void loadCachedQuotes() {
+        File file = getLocalFile(QUOTE_STORE_FILE);
+        File legacy_file = getLocalFile(LEGACY_QUOTES_FILE);
+        boolean migrate = !file.exists() && legacy_file.exists();
+
+        quote_store_ = QuoteStore.open(file);
+        if (migrate)
+            migrateLegacyQuotes(legacy_file);
+        loadWatchlistIndex();
+    }
+
+    // Quotes used to be kept in a Properties file; move them into the quote store.
+    private void migrateLegacyQuotes(File file) {
+        Properties props = new Properties();
         try (FileInputStream fs = new FileInputStream(file)) {
-            quote_props_.load(fs);
-        } catch (FileNotFoundException e) {
+            props.load(fs);
         } catch (IOException e) {
             Log.e(TAG, "Could not load properties file: " + e.getMessage());
+            return;
         }
 
-        String symbols = quote_props_.getProperty("symbols", null);
-        if (symbols == null)
-            return;
-        String[] symbol_list = symbols.split(",");
+        String symbols = props.getProperty("symbols", null);
+        List<String> symbol_list = new ArrayList<String>();
+        List<CachedQuote> quotes = new ArrayList<CachedQuote>();
+        if (symbols != null && !symbols.isEmpty())
+            symbol_list.addAll(Arrays.asList(symbols.split(",")));
         for (String symbol : symbol_list) {
-            String prefix = symbol.replace("=", "_");
+            String prefix = mangleSymbol(symbol);
 
             CachedQuote quote = new CachedQuote(symbol);
-            quote.companyName = quote_props_.getProperty(prefix + ".companyName", null);
-            quote.cacheDate = quote_props_.getProperty(prefix + ".cacheDate", null);
-            quote.prevDayQuote = quote_props_.getProperty(prefix + ".prevDayQuote", null);
-            quote.recentQuote = quote_props_.getProperty(prefix + ".recentQuote", null);
-            quote.lastTradeDate = quote_props_.getProperty(prefix + ".lastTradeDate", null);
-            quote_cache_.put(symbol, quote);
+            quote.companyName = props.getProperty(prefix + ".companyName", null);
+            quote.cacheDate = props.getProperty(prefix + ".cacheDate", null);
+            quote.setPrevDayQuote(props.getProperty(prefix + ".prevDayQuote", null));
+            quote.setRecentQuote(props.getProperty(prefix + ".recentQuote", null));
+            quote.lastTradeDate = props.getProperty(prefix + ".lastTradeDate", null);
+            quotes.add(quote);
+        }
+
+        try {
+            quote_store_.replaceAll(quotes);
+            if (symbols != null)
+                Watchlist.write(getLocalFile(WATCHLIST_FILE), symbol_list);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not migrate cached quotes: " + e.getMessage());
+            return;
         }
+        if (!file.delete())
+            Log.e(TAG, "Could not remove " + file.getName());
     }
 
-    public void addSymbol(String raw_symbol, String company_name) {
+    public synchronized void addSymbol(String raw_symbol, String company_name) {
         String symbol = raw_symbol.toUpperCase();
-        List<String> symbols = new ArrayList<String>(Arrays.asList(getStockSymbols()));
-        if (symbols.contains(symbol))
+        if (!symbols_.add(symbol))
             return;
-        symbols.add(symbol);
 
-        String mangled = mangleSymbol(raw_symbol);
-
-        String new_list = String.join(",", symbols);
-        synchronized (quote_props_) {
-            quote_props_.setProperty("symbols", new_list);
-            if (company_name != null)
-                setProperty(quote_props_, mangled + ".companyName", company_name);
+        if (company_name != null) {
+            // Rows compare quotes by reference, so replace the cached quote rather than
+            // changing one the list may be drawing.
+            CachedQuote old_quote = getCachedQuote(symbol);
+            CachedQuote quote = new CachedQuote(symbol);
+            if (old_quote != null) {
+                quote.cacheDate = old_quote.cacheDate;
+                quote.lastTradeDate = old_quote.lastTradeDate;
+                quote.fetchTime = old_quote.fetchTime;
+                quote.setPrices(old_quote.getPrice(), old_quote.getPrevPrice());
+            }
+            quote.companyName = company_name;
+            saveCachedQuote(quote);
         }
-        writeCachedQuotes();
-        loadCachedQuotes();
+        saveWatchlist(active_list_);
     }
 
-    public void removeSymbol(String symbol) {
-        quote_cache_.remove(symbol);
+    public synchronized void removeSymbol(String symbol) {
+        symbols_.remove(symbol);
+        saveWatchlist(active_list_);
 
-        String[] symbols = getStockSymbols();
-        String[] new_symbols = Utilities.removeString(symbols, symbol);
-        String new_list = String.join(",", new_symbols);
+        // Quotes are shared between lists, so only forget this one if nothing else shows it.
+        maybe_unused_quotes_.add(symbol);
+        forgetUnusedQuotes();
+    }
+
+    private void forgetUnusedQuotes() {
+        if (maybe_unused_quotes_.isEmpty())
+            return;
 
-        String prefix = mangleSymbol(symbol);
-        List<String> to_remove = new ArrayList<String>();
-        synchronized (quote_props_) {
-            for (String key : quote_props_.stringPropertyNames()) {
-                if (key.startsWith(prefix + "."))
-                    to_remove.add(key);
+        boolean all_loaded = true;
+        for (Watchlist list : watchlists_)
+            all_loaded &= list.isLoaded();
+
+        boolean forgot = false;
+        Iterator<String> iter = maybe_unused_quotes_.iterator();
+        while (iter.hasNext()) {
+            String symbol = iter.next();
+            boolean shown = false;
+            for (Watchlist list : watchlists_) {
+                if (list.isLoaded() && list.getSymbols().contains(symbol)) {
+                    shown = true;
+                    break;
+                }
+            }
+            if (shown) {
+                iter.remove();
+            } else if (all_loaded) {
+                quote_cache_.remove(symbol);
+                dirty_quotes_.put(symbol, null);
+                forgot = true;
+                iter.remove();
             }
-            for (String key : to_remove)
-                quote_props_.remove(key);
-            quote_props_.setProperty("symbols", new_list);
         }
-        writeCachedQuotes();
+        if (forgot)
+            writer_.schedule("quotes", commit_quotes_);
     }
 
-    public void reorderSymbols(String symbol1, String symbol2) {
-        String[] symbols = getStockSymbols();
-
-        int index1 = Utilities.findString(symbols, symbol1);
-        int index2 = Utilities.findString(symbols, symbol2);
-        symbols[index1] = symbol2;
-        symbols[index2] = symbol1;
-
-        String new_list = String.join(",", symbols);
-        synchronized (quote_props_) {
-            quote_props_.setProperty("symbols", new_list);
-        }
-        writeCachedQuotes();
+    public synchronized void reorderSymbols(String symbol1, String symbol2) {
+        symbols_.swap(symbol1, symbol2);
+        saveWatchlist(active_list_);
     }
 
-    public void saveCachedQuote(CachedQuote quote) {
+    public synchronized void saveCachedQuote(CachedQuote quote) {
         quote_cache_.put(quote.symbol, quote);
+        dirty_quotes_.put(quote.symbol, quote);
+        writer_.schedule("quotes", commit_quotes_);
+    }
 
-        String prefix = mangleSymbol(quote.symbol);
-        synchronized (quote_props_) {
-            setProperty(quote_props_, prefix + ".companyName", quote.companyName);
-            setOrDeleteProperty(quote_props_, prefix + ".cacheDate", quote.cacheDate);
-            setOrDeleteProperty(quote_props_, prefix + ".prevDayQuote", quote.prevDayQuote);
-            setOrDeleteProperty(quote_props_, prefix + ".recentQuote", quote.recentQuote);
-            setOrDeleteProperty(quote_props_, prefix + ".lastTradeDate", quote.lastTradeDate);
-        }
+    // Blocks until all pending changes are on disk.
+    public void flush() {
+        writer_.flush();
+    }
 
-        // This is not terribly efficient, but whatever for now.
-        Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                writeCachedQuotes();
-            }
-        });
-        thread.start();
+    // Starts writing pending changes now, without waiting for them.
+    public void startFlush() {
+        writer_.startFlush();
     }
 
+    // Unlike the watchlist files, quotes are not replaced atomically: they're written into the
+    // store's slots in place. A crash mid-write can leave a damaged store, which QuoteStore
+    // detects and starts over from, since every quote can be fetched again.
+    private Runnable commit_quotes_ = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, CachedQuote> quotes;
+            synchronized (Settings.this) {
+                quotes = dirty_quotes_;
+                dirty_quotes_ = new HashMap<String, CachedQuote>();
+            }
+            for (Map.Entry<String, CachedQuote> entry : quotes.entrySet()) {
+                if (entry.getValue() != null)
+                    quote_store_.put(entry.getValue());
+                else
+                    quote_store_.remove(entry.getKey());
+            }
+            quote_store_.sync();
+        }
+    };
+
     private String mangleSymbol(String symbol) {
         String s = symbol;
         s = s.replace("=", "_");
@@ -224,29 +342,98 @@ public class Settings {
         return s;
     }
 
-    private void setOrDeleteProperty(Properties props, String key, String value) {
-        if (value != null)
-            props.setProperty(key, value);
-        else
-            props.remove(key);
+    // The index lists each watchlist's name, and which one is active. Before there were
+    // several lists, there was just the one watchlist file, which becomes the first list.
+    private void loadWatchlistIndex() {
+        Properties index = new Properties();
+        try (FileInputStream fs = new FileInputStream(getLocalFile(WATCHLIST_INDEX_FILE))) {
+            index.load(fs);
+        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load watchlist index: " + e.getMessage());
+        }
+
+        String ids = index.getProperty("lists", "");
+        for (String id : ids.split(",")) {
+            if (id.isEmpty())
+                continue;
+            try {
+                int list_id = Integer.parseInt(id);
+                String name = index.getProperty("list." + id + ".name", DEFAULT_WATCHLIST_NAME);
+                watchlists_.add(newWatchlist(list_id, name));
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Bad watchlist id: " + id);
+            }
+        }
+        if (watchlists_.isEmpty())
+            watchlists_.add(newWatchlist(0, DEFAULT_WATCHLIST_NAME));
+
+        active_list_ = watchlists_.get(0);
+        String active = index.getProperty("active", null);
+        for (Watchlist list : watchlists_) {
+            if (Integer.toString(list.getId()).equals(active))
+                active_list_ = list;
+        }
+        symbols_ = active_list_.getSymbols();
     }
 
-    private void setProperty(Properties props, String key, String value) {
-        if (value != null)
-            props.setProperty(key, value);
+    private Watchlist newWatchlist(int id, String name) {
+        String file = (id == 0) ? WATCHLIST_FILE : WATCHLIST_FILE + "." + id;
+        List<String> defaults = (id == 0)
+                                ? Arrays.asList(getDefaultSymbols())
+                                : new ArrayList<String>();
+        return new Watchlist(id, name, getLocalFile(file), defaults);
     }
 
-    private void writeCachedQuotes() {
-        File file = getLocalFile("cached_quotes");
-        try (FileOutputStream fs = new FileOutputStream(file)) {
-            synchronized (quote_props_) {
-                quote_props_.store(fs, "");
+    private void saveWatchlist(final Watchlist list) {
+        writer_.schedule("watchlist." + list.getId(), new Runnable() {
+            @Override
+            public void run() {
+                List<String> symbols;
+                synchronized (Settings.this) {
+                    symbols = list.getSymbols().toList();
+                }
+                try {
+                    Watchlist.write(list.getFile(), symbols);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write watchlist: " + e.getMessage());
+                }
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Could not write properties: " + e.getMessage());
-        }
+        });
+    }
+
+    private void saveWatchlistIndex() {
+        writer_.schedule("watchlists", commit_watchlist_index_);
     }
 
+    private Runnable commit_watchlist_index_ = new Runnable() {
+        @Override
+        public void run() {
+            Properties index = new Properties();
+            synchronized (Settings.this) {
+                List<String> ids = new ArrayList<String>();
+                for (Watchlist list : watchlists_) {
+                    String id = Integer.toString(list.getId());
+                    ids.add(id);
+                    index.setProperty("list." + id + ".name", list.getName());
+                }
+                index.setProperty("lists", String.join(",", ids));
+                index.setProperty("active", Integer.toString(active_list_.getId()));
+            }
+
+            File file = getLocalFile(WATCHLIST_INDEX_FILE);
+            File temp = getLocalFile(WATCHLIST_INDEX_FILE + ".tmp");
+            try (FileOutputStream fs = new FileOutputStream(temp)) {
+                index.store(fs, "");
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write watchlist index: " + e.getMessage());
+                return;
+            }
+            if (!temp.renameTo(file))
+                Log.e(TAG, "Could not replace " + file.getName());
+        }
+    };
+
     private String[] getDefaultSymbols() {
         return new String[]{
                 "AMZN",
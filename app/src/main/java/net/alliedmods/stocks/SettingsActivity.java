@@ -29,7 +29,7 @@ import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.PreferenceScreen;
 
 import net.alliedmods.quotes.IQuoteService;
-import net.alliedmods.quotes.QuoteFetcher;
+import net.alliedmods.quotes.QuoteCollector;
 import net.alliedmods.quotes.QuoteRequest;
 import net.alliedmods.quotes.QuoteResult;
 
@@ -53,6 +53,7 @@ public class SettingsActivity extends AppCompatActivity
 
     public static class SettingsFragment extends PreferenceFragmentCompat {
         private IThread test_thread_;
+        private IQuoteService test_service_;
 
         @Override
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
@@ -92,6 +93,7 @@ public class SettingsActivity extends AppCompatActivity
                 pref.setSummary("FAILED: API not configured");
                 return;
             }
+            test_service_ = service;
 
             final Handler handler = new Handler(new Handler.Callback() {
                 @Override
@@ -110,7 +112,7 @@ public class SettingsActivity extends AppCompatActivity
 
                     QuoteResult result = null;
                     try {
-                        List<QuoteResult> results = service.query(requests);
+                        List<QuoteResult> results = QuoteCollector.query(service, requests);
                         if (results == null)
                             throw new Exception("Results object is null");
                         if (results.size() == 0)
@@ -122,10 +124,9 @@ public class SettingsActivity extends AppCompatActivity
                         result.error = e.getMessage();
                     }
 
-                    Message msg = new Message();
+                    Message msg = Message.obtain(handler, 0, result);
                     msg.setAsynchronous(true);
-                    msg.setData(result.serialize());
-                    handler.sendMessage(msg);
+                    msg.sendToTarget();
                 }
             });
         }
@@ -138,8 +139,7 @@ public class SettingsActivity extends AppCompatActivity
 
             Preference pref = findPreference("test_api_button");
 
-            Bundle b = msg.getData();
-            QuoteResult result = QuoteResult.deserialize(b);
+            QuoteResult result = (QuoteResult)msg.obj;
             if (!result.success) {
                 pref.setSummary("FAILED: " + result.error);
                 return;
@@ -153,7 +153,12 @@ public class SettingsActivity extends AppCompatActivity
                 return;
             }
 
-            pref.setSummary("Passed!");
+            int remaining = StockApplication.getSettings().getQuotaGovernor()
+                    .getRemainingToday(test_service_);
+            if (remaining >= 0)
+                pref.setSummary("Passed! (" + remaining + " requests left today)");
+            else
+                pref.setSummary("Passed!");
         }
 
         private void changeApiChoice(Object newValue) {
@@ -0,0 +1,134 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import net.alliedmods.quotes.IQuoteService;
+import net.alliedmods.quotes.QuoteFetcher;
+import net.alliedmods.quotes.QuoteRequest;
+import net.alliedmods.quotes.QuoteResult;
+import net.alliedmods.quotes.TaskToken;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A refresh of the active watchlist started as soon as settings load, before any activity
+// exists to show it. Results are held until an activity attaches, then replayed in order; after
+// that they go straight to the activity's callback.
+public class SpeculativeRefresh implements QuoteFetcher.OnQuery {
+    private int watchlist_id_;
+    private IQuoteService service_;
+    private QuoteFetcher fetcher_;
+    private TaskToken token_;
+    private QuoteFetcher.OnQuery callback_;
+    private List<Object> pending_ = new ArrayList<Object>();
+
+    // A finished batch, kept in pending_ alongside QuoteResults.
+    private static class BatchComplete {
+        final Exception error;
+
+        BatchComplete(Exception error) {
+            this.error = error;
+        }
+    }
+
+    private SpeculativeRefresh(int watchlist_id, IQuoteService service, QuoteFetcher fetcher) {
+        watchlist_id_ = watchlist_id;
+        service_ = service;
+        fetcher_ = fetcher;
+    }
+
+    // Returns null if there is no quote service configured, or nothing to fetch.
+    public static SpeculativeRefresh start(Settings settings) {
+        String[] symbols = settings.getStockSymbols();
+        if (symbols.length == 0)
+            return null;
+        IQuoteService service = settings.createQuoteService();
+        if (service == null)
+            return null;
+
+        List<QuoteRequest> requests = new ArrayList<QuoteRequest>(symbols.length);
+        for (String symbol : symbols) {
+            CachedQuote cache = settings.getCachedQuote(symbol);
+            String lastTradeDate = cache != null ? cache.lastTradeDate : null;
+            boolean fetchName = (cache == null || cache.companyName == null);
+            requests.add(new QuoteRequest(symbol, lastTradeDate, fetchName));
+        }
+
+        QuoteFetcher fetcher = new QuoteFetcher(service, settings.getQuotaGovernor());
+        SpeculativeRefresh refresh = new SpeculativeRefresh(
+                settings.getActiveWatchlist().getId(), service, fetcher);
+        synchronized (refresh) {
+            refresh.token_ = fetcher.fetch(requests, refresh);
+        }
+        return refresh;
+    }
+
+    public int getWatchlistId() {
+        return watchlist_id_;
+    }
+
+    public IQuoteService getService() {
+        return service_;
+    }
+
+    public QuoteFetcher getFetcher() {
+        return fetcher_;
+    }
+
+    // Hand everything received so far to the callback, then forward the rest as it arrives.
+    // Results are delivered with the returned token's task id.
+    public synchronized TaskToken attach(QuoteFetcher.OnQuery callback) {
+        int task_id = token_.getTaskId();
+        for (Object event : pending_) {
+            if (event instanceof BatchComplete)
+                callback.onBatchComplete(((BatchComplete)event).error, task_id);
+            else
+                callback.onQuote((QuoteResult)event, task_id);
+        }
+        pending_ = null;
+        callback_ = callback;
+        return token_;
+    }
+
+    // Used when nothing will attach, e.g. the user switched lists before the activity started.
+    public void abandon() {
+        TaskToken token;
+        synchronized (this) {
+            token = token_;
+            pending_ = null;
+        }
+        token.cancel();
+        fetcher_.shutdown();
+    }
+
+    @Override
+    public synchronized void onQuote(QuoteResult result, int task_id) {
+        if (callback_ != null)
+            callback_.onQuote(result, task_id);
+        else if (pending_ != null)
+            pending_.add(result);
+    }
+
+    @Override
+    public synchronized void onBatchComplete(Exception e, int task_id) {
+        if (callback_ != null)
+            callback_.onBatchComplete(e, task_id);
+        else if (pending_ != null)
+            pending_.add(new BatchComplete(e));
+    }
+}
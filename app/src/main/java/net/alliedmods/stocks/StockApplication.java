@@ -19,25 +19,120 @@ package net.alliedmods.stocks;
 
 import android.app.Application;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+// Settings are read on a background thread, so the first activity can put up its frame while
+// that finishes. Anything that needs settings either waits in getSettings(), or asks to be
+// called back on the main thread with whenReady().
 public class StockApplication extends Application {
+    private static final String TAG = "StockApplication";
+
     private static Context sContext;
-    private static Settings sSettings;
+    private static volatile Settings sSettings;
+    private static CountDownLatch sReady = new CountDownLatch(1);
+    private static final Object sReadyLock = new Object();
+    private static List<Runnable> sReadyCallbacks = new ArrayList<Runnable>();
+    private static Handler sMainHandler;
+    private static SpeculativeRefresh sSpeculativeRefresh;
 
     public void onCreate() {
         super.onCreate();
 
-        System.loadLibrary("native-lib");
-
         sContext = getApplicationContext();
-        sSettings = new Settings(sContext);
+        sMainHandler = new Handler(Looper.getMainLooper());
+
+        Thread init = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                initialize();
+            }
+        }, "StockInit");
+        init.start();
+    }
+
+    private static void initialize() {
+        Trace.beginSection("StockApplication.initialize");
+        try {
+            Settings settings = new Settings(sContext);
+            HttpCache.install(new File(settings.getCacheDir(), "http-cache"));
+
+            // Get the first quotes on the wire now, rather than once the activity has laid
+            // itself out.
+            SpeculativeRefresh refresh = SpeculativeRefresh.start(settings);
+            synchronized (sReadyLock) {
+                sSpeculativeRefresh = refresh;
+            }
+            sSettings = settings;
+        } finally {
+            Trace.endSection();
+        }
+        logStartupMarker("settings ready");
+
+        List<Runnable> callbacks;
+        synchronized (sReadyLock) {
+            sReady.countDown();
+            callbacks = sReadyCallbacks;
+            sReadyCallbacks = null;
+        }
+        for (Runnable callback : callbacks)
+            sMainHandler.post(callback);
     }
 
     public static Context getAppContext() {
         return sContext;
     }
 
+    // Blocks until settings have loaded.
     public static Settings getSettings() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                sReady.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
         return sSettings;
     }
+
+    // Run the callback on the main thread once settings have loaded. If they already have, the
+    // callback runs immediately. Must be called from the main thread.
+    public static void whenReady(Runnable callback) {
+        synchronized (sReadyLock) {
+            if (sReadyCallbacks != null) {
+                sReadyCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    // The refresh started at launch, if any. Only the first caller gets it.
+    public static SpeculativeRefresh takeSpeculativeRefresh() {
+        synchronized (sReadyLock) {
+            SpeculativeRefresh refresh = sSpeculativeRefresh;
+            sSpeculativeRefresh = null;
+            return refresh;
+        }
+    }
+
+    // Startup times are measured from process start, and can be read back with
+    // "adb logcat -s StockApplication".
+    public static void logStartupMarker(String what) {
+        long ms = SystemClock.uptimeMillis() - Process.getStartUptimeMillis();
+        Log.i(TAG, "Startup: " + what + " at " + ms + "ms");
+    }
 }
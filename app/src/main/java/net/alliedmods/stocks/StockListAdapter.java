@@ -0,0 +1,295 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.asynclayoutinflater.view.AsyncLayoutInflater;
+import androidx.core.content.res.ResourcesCompat;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Rows for the main quote list. Lists are diffed on a background thread by ListAdapter, and a
+// row whose quote changed is rebound with a payload naming just the parts that differ.
+//
+// Until the real rows are known, the list can be filled with cheap skeleton rows, while the real
+// row views are inflated off the main thread.
+public class StockListAdapter
+        extends ListAdapter<StockListAdapter.Row, RecyclerView.ViewHolder>
+{
+    private static final int VIEW_STOCK = 0;
+    private static final int VIEW_SKELETON = 1;
+
+    // Payload bits.
+    static final int CHANGED_NAME = 0x1;
+    static final int CHANGED_PRICE = 0x2;
+    static final int CHANGED_CHANGE = 0x4;
+
+    enum ChangeBoxMode {
+        Value,
+        Percent
+    };
+
+    // A row is a symbol and whatever quote we have for it, which may be null. Quotes are
+    // replaced rather than modified when they update, so comparing references is enough to
+    // tell whether a row changed. Skeleton rows have no symbol.
+    public static class Row {
+        final String symbol;
+        final CachedQuote quote;
+
+        Row(String symbol, CachedQuote quote) {
+            this.symbol = symbol;
+            this.quote = quote;
+        }
+    }
+
+    private static final DiffUtil.ItemCallback<Row> Differ = new DiffUtil.ItemCallback<Row>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Row a, @NonNull Row b) {
+            return a.symbol == null ? b.symbol == null : a.symbol.equals(b.symbol);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Row a, @NonNull Row b) {
+            return a.quote == b.quote;
+        }
+
+        // This runs on the diff thread, so it compares raw values rather than display text.
+        @Override
+        public Object getChangePayload(@NonNull Row a, @NonNull Row b) {
+            int changed = 0;
+            String name_a = CachedQuote.getCompanyName(a.quote);
+            String name_b = CachedQuote.getCompanyName(b.quote);
+            if (name_a == null ? name_b != null : !name_a.equals(name_b))
+                changed |= CHANGED_NAME;
+            if (!CachedQuote.samePrice(a.quote, b.quote))
+                changed |= CHANGED_PRICE;
+            if (!CachedQuote.sameChange(a.quote, b.quote))
+                changed |= CHANGED_CHANGE;
+            return changed;
+        }
+    };
+
+    private Context context_;
+    private LayoutInflater inflater_;
+    private ArrayDeque<View> spare_rows_ = new ArrayDeque<View>();
+    private ChangeBoxMode changebox_mode_ = ChangeBoxMode.Value;
+
+    // Change box colors, resolved once. Index with the CHANGE_* styles below.
+    private static final int CHANGE_NONE = 0;
+    private static final int CHANGE_UP = 1;
+    private static final int CHANGE_DOWN = 2;
+    private int[] text_colors_ = new int[3];
+    private Drawable[] pill_boxes_ = new Drawable[3];
+
+    StockListAdapter(Context context) {
+        super(Differ);
+        context_ = context;
+        inflater_ = LayoutInflater.from(context);
+
+        Resources res = context.getResources();
+        int[] backgrounds = { R.color.white, R.color.green, R.color.red };
+        for (int i = 0; i < backgrounds.length; i++) {
+            int color = ResourcesCompat.getColor(res, backgrounds[i], null);
+            pill_boxes_[i] = Utilities.getPillBox(context, color);
+        }
+        text_colors_[CHANGE_NONE] = ResourcesCompat.getColor(res, R.color.black, null);
+        text_colors_[CHANGE_UP] = ResourcesCompat.getColor(res, R.color.almost_white, null);
+        text_colors_[CHANGE_DOWN] = text_colors_[CHANGE_UP];
+    }
+
+    public void flipChangeBoxMode() {
+        if (changebox_mode_ == ChangeBoxMode.Percent)
+            changebox_mode_ = ChangeBoxMode.Value;
+        else
+            changebox_mode_ = ChangeBoxMode.Percent;
+        notifyItemRangeChanged(0, getItemCount(), CHANGED_CHANGE);
+    }
+
+    public void showSkeleton(int count) {
+        List<Row> rows = new ArrayList<Row>(count);
+        for (int i = 0; i < count; i++)
+            rows.add(new Row(null, null));
+        submitList(rows);
+    }
+
+    // Inflate row views on a background thread, to be handed out by onCreateViewHolder before
+    // it falls back to inflating on the main thread.
+    public void preinflateRows(ViewGroup parent, int count) {
+        AsyncLayoutInflater inflater = new AsyncLayoutInflater(context_);
+        AsyncLayoutInflater.OnInflateFinishedListener callback =
+                new AsyncLayoutInflater.OnInflateFinishedListener() {
+            @Override
+            public void onInflateFinished(View view, int resid, ViewGroup parent) {
+                spare_rows_.add(view);
+            }
+        };
+        for (int i = 0; i < count; i++)
+            inflater.inflate(R.layout.stock_row, parent, callback);
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return getItem(position).symbol == null ? VIEW_SKELETON : VIEW_STOCK;
+    }
+
+    @Override
+    public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        if (viewType == VIEW_SKELETON) {
+            View view = inflater_.inflate(R.layout.skeleton_row, parent, false);
+            return new SkeletonHolder(view);
+        }
+
+        View view = spare_rows_.poll();
+        if (view == null)
+            view = inflater_.inflate(R.layout.stock_row, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+        if (holder instanceof ViewHolder) {
+            ((ViewHolder)holder).bind(getItem(position),
+                                      CHANGED_NAME | CHANGED_PRICE | CHANGED_CHANGE);
+        }
+    }
+
+    @Override
+    public void onBindViewHolder(RecyclerView.ViewHolder holder, int position,
+                                 List<Object> payloads)
+    {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        if (!(holder instanceof ViewHolder))
+            return;
+        int changed = 0;
+        for (Object payload : payloads)
+            changed |= (Integer)payload;
+        ((ViewHolder)holder).bind(getItem(position), changed);
+    }
+
+    public static class SkeletonHolder extends RecyclerView.ViewHolder {
+        SkeletonHolder(View itemView) {
+            super(itemView);
+        }
+    }
+
+    // Holders remember what they last put on screen, so rebinding a row only touches the views
+    // whose contents actually differ.
+    public class ViewHolder extends RecyclerView.ViewHolder {
+        private TextView symbol_name_;
+        private TextView company_name_;
+        private TextView quote_box_;
+        private TextView changebox_;
+
+        private String symbol_;
+        private String company_name_text_;
+        private String price_text_;
+        private String change_text_;
+        private int change_style_ = -1;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            symbol_name_ = (TextView)itemView.findViewById(R.id.symbol_name);
+            company_name_ = (TextView)itemView.findViewById(R.id.company_name);
+            quote_box_ = (TextView)itemView.findViewById(R.id.quote);
+            changebox_ = (TextView)itemView.findViewById(R.id.change_box);
+            changebox_.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    flipChangeBoxMode();
+                }
+            });
+        }
+
+        void bind(Row row, int changed) {
+            CachedQuote quote = row.quote;
+            if ((changed & CHANGED_NAME) != 0) {
+                if (!row.symbol.equals(symbol_)) {
+                    symbol_ = row.symbol;
+                    symbol_name_.setText(symbol_);
+                }
+                String name = CachedQuote.getCompanyName(quote);
+                if (!same(name, company_name_text_)) {
+                    company_name_text_ = name;
+                    company_name_.setText(name);
+                }
+            }
+            if ((changed & CHANGED_PRICE) != 0) {
+                String price = CachedQuote.getPriceText(quote);
+                if (price == null)
+                    price = "";
+                if (!price.equals(price_text_)) {
+                    price_text_ = price;
+                    quote_box_.setText(price);
+                }
+            }
+            if ((changed & CHANGED_CHANGE) != 0)
+                bindChangeBox(quote);
+        }
+
+        // CachedQuote here can be null.
+        private void bindChangeBox(CachedQuote quote) {
+            String change_text = null;
+            if (quote != null && changebox_mode_ == ChangeBoxMode.Value)
+                change_text = quote.getChangeText();
+            else if (quote != null && changebox_mode_ == ChangeBoxMode.Percent)
+                change_text = quote.getPercentChangeText();
+
+            int style;
+            if (change_text == null)
+                style = CHANGE_NONE;
+            else if (quote.getChangeSign() >= 0)
+                style = CHANGE_UP;
+            else
+                style = CHANGE_DOWN;
+
+            if (change_text == null)
+                change_text = "    -    ";
+            if (!change_text.equals(change_text_)) {
+                change_text_ = change_text;
+                changebox_.setText(change_text);
+            }
+            if (style != change_style_) {
+                changebox_.setGravity(style == CHANGE_NONE ? Gravity.CENTER : Gravity.RIGHT);
+                changebox_.setBackground(pill_boxes_[style]);
+                changebox_.setTextColor(text_colors_[style]);
+                change_style_ = style;
+            }
+        }
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
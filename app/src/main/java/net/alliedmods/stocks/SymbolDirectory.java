@@ -0,0 +1,378 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The symbol reference data, compiled once when it's downloaded into a file that is searched
+// in place through a read-only mapping. Opening it only bounds-checks the tables, and a lookup
+// only makes Strings for the entries it returns.
+//
+// The file is a header, a table of fixed-size entries sorted by case-folded symbol, a table of
+// exchange names, then a string table:
+//
+//   header:   magic, version, count, exchange count, exchanges offset, reserved
+//   entry:    folded symbol, symbol, name (string offsets; name may be -1), exchange index
+//             (u16, 0xffff for none), padding
+//   exchange: string offset
+//   string:   u16 length, UTF-8 bytes
+//
+// Folded symbols compare as unsigned bytes, which for UTF-8 is code point order.
+public class SymbolDirectory {
+    private static final String TAG = "SymbolDirectory";
+
+    private static final int MAGIC = 0x444d5953;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 16;
+    private static final int NO_EXCHANGE = 0xffff;
+
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_COUNT = 8;
+    private static final int H_EXCHANGE_COUNT = 12;
+    private static final int H_EXCHANGES = 16;
+
+    private static final int E_KEY = 0;
+    private static final int E_SYMBOL = 4;
+    private static final int E_NAME = 8;
+    private static final int E_EXCHANGE = 12;
+
+    private MappedByteBuffer map_;
+    private int count_;
+    private String[] exchanges_;
+
+    private SymbolDirectory(MappedByteBuffer map) {
+        map_ = map;
+    }
+
+    // One entry of the directory. Fields are read from the file when asked for.
+    public class Entry {
+        private int index_;
+        private int offset_;
+
+        private Entry(int index) {
+            index_ = index;
+            offset_ = entryOffset(index);
+        }
+
+        // Position in symbol order.
+        public int getIndex() {
+            return index_;
+        }
+
+        public String getSymbol() {
+            return readString(map_.getInt(offset_ + E_SYMBOL));
+        }
+
+        public String getName() {
+            return readString(map_.getInt(offset_ + E_NAME));
+        }
+
+        public String getExchange() {
+            int exchange = map_.getShort(offset_ + E_EXCHANGE) & 0xffff;
+            return exchange == NO_EXCHANGE ? null : exchanges_[exchange];
+        }
+    }
+
+    // Returns null if the file is missing, or isn't a directory this version can read.
+    public static SymbolDirectory open(File file) {
+        if (!file.exists())
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            SymbolDirectory directory = new SymbolDirectory(map);
+            if (!directory.validate()) {
+                Log.e(TAG, "Symbol directory is damaged or has an unknown format");
+                return null;
+            }
+            return directory;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open symbol directory: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public int size() {
+        return count_;
+    }
+
+    public boolean contains(String symbol) {
+        byte[] key = foldedKey(symbol);
+        int index = lowerBound(key, false);
+        return index < count_ && compareKey(index, key, false) == 0;
+    }
+
+    // Entries whose symbol starts with the given prefix, in symbol order.
+    public List<Entry> findWithPrefix(String prefix, int max_count) {
+        List<Entry> entries = new ArrayList<Entry>();
+        byte[] key = foldedKey(prefix);
+        for (int i = lowerBound(key, true); i < count_ && entries.size() < max_count; i++) {
+            if (compareKey(i, key, true) != 0)
+                break;
+            entries.add(new Entry(i));
+        }
+        return entries;
+    }
+
+    public Entry get(int index) {
+        return new Entry(index);
+    }
+
+    // Compiles the parsed reference data into a directory file. The file is written next to
+    // the old one and renamed over it, so a directory that's already open keeps working.
+    public static void build(File file, FastCsvParser csv) throws IOException {
+        int count = csv.size();
+        final byte[][] keys = new byte[count][];
+        byte[][] symbols = new byte[count][];
+        byte[][] names = new byte[count][];
+        int[] exchanges = new int[count];
+        List<byte[]> exchange_names = new ArrayList<byte[]>();
+        Map<String, Integer> exchange_index = new HashMap<String, Integer>();
+
+        int string_space = 0;
+        for (int i = 0; i < count; i++) {
+            FastCsvParser.Row row = csv.getRow(i);
+            String symbol = row.get("symbol");
+            if (symbol == null)
+                symbol = "";
+            keys[i] = foldedKey(symbol);
+            symbols[i] = stringBytes(symbol);
+            String name = row.get("name");
+            names[i] = name != null ? stringBytes(name) : null;
+
+            String exchange = row.get("exchange");
+            exchanges[i] = NO_EXCHANGE;
+            if (exchange != null && !exchange.isEmpty()) {
+                Integer index = exchange_index.get(exchange);
+                if (index == null && exchange_names.size() < NO_EXCHANGE) {
+                    index = exchange_names.size();
+                    exchange_index.put(exchange, index);
+                    exchange_names.add(stringBytes(exchange));
+                    string_space += 2 + exchange_names.get(index).length;
+                }
+                if (index != null)
+                    exchanges[i] = index;
+            }
+
+            string_space += 2 + keys[i].length + 2 + symbols[i].length;
+            if (names[i] != null)
+                string_space += 2 + names[i].length;
+        }
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareBytes(keys[a], keys[b]);
+            }
+        });
+
+        int exchanges_offset = entryOffset(count);
+        int strings_offset = exchanges_offset + exchange_names.size() * 4;
+        int size = strings_offset + string_space;
+
+        File temp = new File(file.getPath() + ".tmp");
+        temp.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.setLength(size);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            map.putInt(H_MAGIC, MAGIC);
+            map.putInt(H_VERSION, VERSION);
+            map.putInt(H_COUNT, count);
+            map.putInt(H_EXCHANGE_COUNT, exchange_names.size());
+            map.putInt(H_EXCHANGES, exchanges_offset);
+
+            int strings = strings_offset;
+            for (int i = 0; i < exchange_names.size(); i++) {
+                map.putInt(exchanges_offset + i * 4, strings);
+                strings = putString(map, strings, exchange_names.get(i));
+            }
+            for (int i = 0; i < count; i++) {
+                int row = order[i];
+                int offset = entryOffset(i);
+                map.putInt(offset + E_KEY, strings);
+                strings = putString(map, strings, keys[row]);
+                map.putInt(offset + E_SYMBOL, strings);
+                strings = putString(map, strings, symbols[row]);
+                if (names[row] != null) {
+                    map.putInt(offset + E_NAME, strings);
+                    strings = putString(map, strings, names[row]);
+                } else {
+                    map.putInt(offset + E_NAME, -1);
+                }
+                map.putShort(offset + E_EXCHANGE, (short)exchanges[row]);
+            }
+            map.force();
+        }
+
+        if (!temp.renameTo(file))
+            throw new IOException("Could not replace " + file.getName());
+    }
+
+    private boolean validate() {
+        if (map_.capacity() < HEADER_SIZE ||
+            map_.getInt(H_MAGIC) != MAGIC ||
+            map_.getInt(H_VERSION) != VERSION)
+        {
+            return false;
+        }
+        long size = map_.capacity();
+        int count = map_.getInt(H_COUNT);
+        int exchange_count = map_.getInt(H_EXCHANGE_COUNT);
+        int exchanges = map_.getInt(H_EXCHANGES);
+        if (count < 0 || exchange_count < 0 ||
+            exchanges != HEADER_SIZE + (long)count * ENTRY_SIZE ||
+            exchanges + (long)exchange_count * 4 > size)
+        {
+            return false;
+        }
+        count_ = count;
+
+        // Every string reference must land in the string table, which follows the exchange
+        // table, so that lookups never read past the end of a damaged file.
+        int strings = exchanges + exchange_count * 4;
+        for (int i = 0; i < exchange_count; i++) {
+            if (!isValidString(map_.getInt(exchanges + i * 4), strings))
+                return false;
+        }
+        for (int i = 0; i < count_; i++) {
+            int offset = entryOffset(i);
+            int name = map_.getInt(offset + E_NAME);
+            int exchange = map_.getShort(offset + E_EXCHANGE) & 0xffff;
+            if (!isValidString(map_.getInt(offset + E_KEY), strings) ||
+                !isValidString(map_.getInt(offset + E_SYMBOL), strings) ||
+                (name != -1 && !isValidString(name, strings)) ||
+                (exchange != NO_EXCHANGE && exchange >= exchange_count))
+            {
+                return false;
+            }
+        }
+
+        // There are only a handful of exchanges, so they're read up front.
+        exchanges_ = new String[exchange_count];
+        for (int i = 0; i < exchange_count; i++)
+            exchanges_[i] = readString(map_.getInt(exchanges + i * 4));
+        return true;
+    }
+
+    private boolean isValidString(int offset, int strings) {
+        int size = map_.capacity();
+        if (offset < strings || offset > size - 2)
+            return false;
+        int length = map_.getShort(offset) & 0xffff;
+        return length <= size - offset - 2;
+    }
+
+    // The first entry whose key compares >= |key|.
+    private int lowerBound(byte[] key, boolean prefix) {
+        int low = 0;
+        int high = count_;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(mid, key, prefix) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    // Compare an entry's folded symbol against |key|, in place. As a prefix, the entry matches
+    // (returns 0) if its symbol starts with |key|.
+    private int compareKey(int index, byte[] key, boolean prefix) {
+        int string = map_.getInt(entryOffset(index) + E_KEY);
+        int length = map_.getShort(string) & 0xffff;
+        int pos = string + 2;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int a = map_.get(pos + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b)
+                return a - b;
+        }
+        if (prefix && length >= key.length)
+            return 0;
+        return length - key.length;
+    }
+
+    private String readString(int offset) {
+        if (offset < 0)
+            return null;
+        int length = map_.getShort(offset) & 0xffff;
+        byte[] bytes = new byte[length];
+        ByteBuffer view = map_.duplicate();
+        view.position(offset + 2);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int putString(MappedByteBuffer map, int offset, byte[] bytes) {
+        map.putShort(offset, (short)bytes.length);
+        ByteBuffer view = map.duplicate();
+        view.position(offset + 2);
+        view.put(bytes);
+        return offset + 2 + bytes.length;
+    }
+
+    private static byte[] stringBytes(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff)
+            bytes = Arrays.copyOf(bytes, 0xffff);
+        return bytes;
+    }
+
+    private static byte[] foldedKey(String symbol) {
+        return stringBytes(new String(FastCsvParser.fold(symbol)));
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cc = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cc != 0)
+                return cc;
+        }
+        return a.length - b.length;
+    }
+
+    private static int entryOffset(int index) {
+        return HEADER_SIZE + index * ENTRY_SIZE;
+    }
+}
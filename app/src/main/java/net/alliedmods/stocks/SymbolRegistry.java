@@ -0,0 +1,125 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+// The symbols in a watchlist, in display order, with a hash index from symbol to position so
+// that lookups don't scan the list.
+//
+// Inserting or removing shifts every symbol after it, so rather than rewriting all of their
+// index entries, positions are only trusted below valid_ and the rest are recomputed the next
+// time someone asks for one.
+public class SymbolRegistry {
+    private ArrayList<String> symbols_ = new ArrayList<String>();
+    private HashMap<String, Integer> positions_ = new HashMap<String, Integer>();
+    private int valid_ = 0;
+    private String[] snapshot_;
+
+    public SymbolRegistry() {
+    }
+
+    public SymbolRegistry(Collection<String> symbols) {
+        for (String symbol : symbols)
+            add(symbol);
+    }
+
+    public int size() {
+        return symbols_.size();
+    }
+
+    public boolean contains(String symbol) {
+        return positions_.containsKey(symbol);
+    }
+
+    public String get(int index) {
+        return symbols_.get(index);
+    }
+
+    public int indexOf(String symbol) {
+        Integer pos = positions_.get(symbol);
+        if (pos == null)
+            return -1;
+        if (pos < valid_)
+            return pos;
+        for (int i = valid_; i < symbols_.size(); i++)
+            positions_.put(symbols_.get(i), i);
+        valid_ = symbols_.size();
+        return positions_.get(symbol);
+    }
+
+    // Returns false if the symbol was already present.
+    public boolean add(String symbol) {
+        if (positions_.containsKey(symbol))
+            return false;
+        symbols_.add(symbol);
+        positions_.put(symbol, symbols_.size() - 1);
+        if (valid_ == symbols_.size() - 1)
+            valid_++;
+        snapshot_ = null;
+        return true;
+    }
+
+    public boolean remove(String symbol) {
+        int pos = indexOf(symbol);
+        if (pos < 0)
+            return false;
+        symbols_.remove(pos);
+        positions_.remove(symbol);
+        valid_ = Math.min(valid_, pos);
+        snapshot_ = null;
+        return true;
+    }
+
+    public void swap(String symbol1, String symbol2) {
+        int index1 = indexOf(symbol1);
+        int index2 = indexOf(symbol2);
+        if (index1 < 0 || index2 < 0)
+            return;
+        symbols_.set(index1, symbol2);
+        symbols_.set(index2, symbol1);
+        positions_.put(symbol1, index2);
+        positions_.put(symbol2, index1);
+        snapshot_ = null;
+    }
+
+    public void move(String symbol, int to) {
+        int from = indexOf(symbol);
+        if (from < 0 || from == to)
+            return;
+        symbols_.remove(from);
+        symbols_.add(to, symbol);
+        positions_.put(symbol, to);
+        valid_ = Math.min(valid_, Math.min(from, to));
+        snapshot_ = null;
+    }
+
+    // The returned array is shared until the next change, so callers must not modify it.
+    public String[] toArray() {
+        if (snapshot_ == null)
+            snapshot_ = symbols_.toArray(new String[symbols_.size()]);
+        return snapshot_;
+    }
+
+    public List<String> toList() {
+        return new ArrayList<String>(symbols_);
+    }
+}
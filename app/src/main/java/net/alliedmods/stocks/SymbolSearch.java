@@ -0,0 +1,318 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Symbol suggestions from a SymbolDirectory, matching on company names as well as symbols.
+//
+// Names are split into words, case-folded, and kept in an inverted index: the distinct words in
+// sorted order, and for each word the entries whose names contain it (with the word's position
+// in the name). A query word then matches a run of sorted words, found by binary search. The
+// index is built once per directory and lives in memory.
+//
+// Searches run on the symbol search thread and reuse the same scratch space, so they're
+// synchronized.
+public class SymbolSearch {
+    // Ranking, best first.
+    private static final int RANK_EXACT_SYMBOL = 0;
+    private static final int RANK_NEAR_SYMBOL = 1;
+    private static final int RANK_NAME_START = 2;
+    private static final int RANK_SYMBOL = 3;
+    private static final int RANK_NAME = 4;
+
+    private SymbolDirectory directory_;
+
+    // Distinct words, sorted; postings for words_[i] are at [word_starts_[i], word_starts_[i+1]).
+    private String[] words_;
+    private int[] word_starts_;
+    private int[] posting_entries_;
+    private byte[] posting_positions_;
+    private short[] name_lengths_;
+
+    // Per-entry scratch space for searchNames, allocated on first use. best_ is all zeroes
+    // between searches; seen_ holds stamps, so it never needs clearing.
+    private int[] best_;
+    private int[] seen_;
+    private int stamp_ = 0;
+
+    public SymbolSearch(SymbolDirectory directory) {
+        directory_ = directory;
+        build();
+    }
+
+    public synchronized List<SymbolDirectory.Entry> search(String query, int max_count) {
+        List<Match> matches = new ArrayList<Match>();
+        Set<Integer> seen = new HashSet<Integer>();
+
+        // Everything would match an empty query.
+        String folded = new String(FastCsvParser.fold(query.trim()));
+        if (folded.isEmpty())
+            return new ArrayList<SymbolDirectory.Entry>();
+        for (SymbolDirectory.Entry entry : directory_.findWithPrefix(folded, max_count)) {
+            String symbol = new String(FastCsvParser.fold(entry.getSymbol()));
+            int rank;
+            if (symbol.length() == folded.length())
+                rank = RANK_EXACT_SYMBOL;
+            else if (symbol.length() == folded.length() + 1)
+                rank = RANK_NEAR_SYMBOL;
+            else
+                rank = RANK_SYMBOL;
+            matches.add(new Match(entry.getIndex(), rank, 0));
+            seen.add(entry.getIndex());
+        }
+
+        for (Match match : searchNames(folded, max_count + seen.size())) {
+            if (!seen.contains(match.entry))
+                matches.add(match);
+        }
+
+        Match[] sorted = matches.toArray(new Match[matches.size()]);
+        Arrays.sort(sorted);
+
+        List<SymbolDirectory.Entry> results = new ArrayList<SymbolDirectory.Entry>();
+        for (int i = 0; i < sorted.length && i < max_count; i++)
+            results.add(directory_.get(sorted[i].entry));
+        return results;
+    }
+
+    private static class Match implements Comparable<Match> {
+        final int entry;
+        final int rank;
+        final int length;
+
+        Match(int entry, int rank, int length) {
+            this.entry = entry;
+            this.rank = rank;
+            this.length = length;
+        }
+
+        // Shorter names first among name matches; they're more likely the company itself
+        // rather than a fund or preferred share named after it. Then symbol order.
+        @Override
+        public int compareTo(Match other) {
+            if (rank != other.rank)
+                return rank - other.rank;
+            if (length != other.length)
+                return length - other.length;
+            return entry - other.entry;
+        }
+    }
+
+    // The best |max_count| entries whose names have a word starting with each of the query's
+    // words.
+    private List<Match> searchNames(String query, int max_count) {
+        List<Match> matches = new ArrayList<Match>();
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty())
+            return matches;
+
+        // For each entry, 1 + the earliest position of the first term in its name, or 0. After
+        // that, entries stay candidates only while every later term is also found.
+        int count = directory_.size();
+        if (best_ == null) {
+            best_ = new int[count];
+            seen_ = new int[count];
+        }
+        int[] best = best_;
+        int[] seen = seen_;
+        int[] candidates = new int[16];
+        int num_candidates = 0;
+        int end = upperBound(terms.get(0));
+        for (int word = lowerBound(terms.get(0)); word < end; word++) {
+            for (int i = word_starts_[word]; i < word_starts_[word + 1]; i++) {
+                int entry = posting_entries_[i];
+                int position = (posting_positions_[i] & 0xff) + 1;
+                if (best[entry] == 0) {
+                    if (num_candidates == candidates.length)
+                        candidates = Arrays.copyOf(candidates, num_candidates * 2);
+                    candidates[num_candidates++] = entry;
+                    best[entry] = position;
+                } else if (position < best[entry]) {
+                    best[entry] = position;
+                }
+            }
+        }
+
+        // Entries are kept until the last term, so best[] can be cleared from them at the end.
+        int[] remaining = null;
+        int num_remaining = num_candidates;
+        for (int t = 1; t < terms.size() && num_remaining > 0; t++) {
+            if (remaining == null)
+                remaining = Arrays.copyOf(candidates, num_candidates);
+            int stamp = nextStamp();
+            end = upperBound(terms.get(t));
+            for (int word = lowerBound(terms.get(t)); word < end; word++) {
+                for (int i = word_starts_[word]; i < word_starts_[word + 1]; i++)
+                    seen[posting_entries_[i]] = stamp;
+            }
+            int kept = 0;
+            for (int i = 0; i < num_remaining; i++) {
+                if (seen[remaining[i]] == stamp)
+                    remaining[kept++] = remaining[i];
+            }
+            num_remaining = kept;
+        }
+        if (remaining == null)
+            remaining = candidates;
+
+        // Keep only the best few, in order.
+        for (int i = 0; i < num_remaining; i++) {
+            int entry = remaining[i];
+            int rank = best[entry] == 1 ? RANK_NAME_START : RANK_NAME;
+            Match match = new Match(entry, rank, name_lengths_[entry]);
+            if (matches.size() == max_count &&
+                match.compareTo(matches.get(max_count - 1)) >= 0)
+            {
+                continue;
+            }
+            int at = matches.size();
+            while (at > 0 && match.compareTo(matches.get(at - 1)) < 0)
+                at--;
+            matches.add(at, match);
+            if (matches.size() > max_count)
+                matches.remove(max_count);
+        }
+
+        for (int i = 0; i < num_candidates; i++)
+            best[candidates[i]] = 0;
+        return matches;
+    }
+
+    private int nextStamp() {
+        if (stamp_ == Integer.MAX_VALUE) {
+            Arrays.fill(seen_, 0);
+            stamp_ = 0;
+        }
+        return ++stamp_;
+    }
+
+    // The first word >= |prefix|.
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = words_.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (words_[mid].compareTo(prefix) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    // The first word past those starting with |prefix|.
+    private int upperBound(String prefix) {
+        int low = lowerBound(prefix);
+        int high = words_.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (words_[mid].startsWith(prefix))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private void build() {
+        int count = directory_.size();
+        name_lengths_ = new short[count];
+
+        // Postings as they're found, in entry order: word id, entry, position.
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        List<String> words = new ArrayList<String>();
+        int capacity = Math.max(count * 2, 16);
+        int[] found_ids = new int[capacity];
+        int[] found_entries = new int[capacity];
+        byte[] found_positions = new byte[capacity];
+        int found = 0;
+
+        for (int entry = 0; entry < count; entry++) {
+            String name = directory_.get(entry).getName();
+            if (name == null)
+                continue;
+            name_lengths_[entry] = (short)Math.min(name.length(), Short.MAX_VALUE);
+
+            List<String> tokens = tokenize(new String(FastCsvParser.fold(name)));
+            for (int position = 0; position < tokens.size(); position++) {
+                String token = tokens.get(position);
+                Integer id = ids.get(token);
+                if (id == null) {
+                    id = words.size();
+                    ids.put(token, id);
+                    words.add(token);
+                }
+                if (found == found_ids.length) {
+                    found_ids = Arrays.copyOf(found_ids, found * 2);
+                    found_entries = Arrays.copyOf(found_entries, found * 2);
+                    found_positions = Arrays.copyOf(found_positions, found * 2);
+                }
+                found_ids[found] = id;
+                found_entries[found] = entry;
+                found_positions[found] = (byte)Math.min(position, 0xff);
+                found++;
+            }
+        }
+
+        // Sort the words, then bucket the postings by word. Within a word they stay in entry
+        // order.
+        words_ = words.toArray(new String[words.size()]);
+        Arrays.sort(words_);
+        int[] rank = new int[words_.length];
+        for (int i = 0; i < words_.length; i++)
+            rank[ids.get(words_[i])] = i;
+
+        word_starts_ = new int[words_.length + 1];
+        for (int i = 0; i < found; i++)
+            word_starts_[rank[found_ids[i]] + 1]++;
+        for (int i = 0; i < words_.length; i++)
+            word_starts_[i + 1] += word_starts_[i];
+
+        int[] next = Arrays.copyOf(word_starts_, words_.length);
+        posting_entries_ = new int[found];
+        posting_positions_ = new byte[found];
+        for (int i = 0; i < found; i++) {
+            int slot = next[rank[found_ids[i]]]++;
+            posting_entries_[slot] = found_entries[i];
+            posting_positions_[slot] = found_positions[i];
+        }
+    }
+
+    // Splits folded text into runs of letters and digits.
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,64 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+// The bulk string helpers behind Utilities.fastDecodeUtf8 and LineIndex. There
+// is a JNI implementation in natives.cpp, and a pure-Java one with identical results, so the
+// symbol cache code can also run (and be benchmarked) off-device.
+//
+// The implementation is picked on first use. The "net.alliedmods.stocks.text" system property
+// may be set to "native" or "java"; otherwise the native library is used if it loads. Either
+// way, the library isn't loaded until something needs it.
+abstract class TextHelpers {
+    static final String PROPERTY = "net.alliedmods.stocks.text";
+
+    // Decode UTF-8, replacing each maximal ill-formed subsequence with U+FFFD.
+    abstract String decodeUtf8(byte[] buffer);
+
+    // Same, into |out|, which must be at least as long as |buffer|. Returns the number of chars
+    // written.
+    abstract int decodeUtf8(byte[] buffer, char[] out);
+
+    // Find the lines in the first |length| chars of |text|, split on CR and LF with empty lines
+    // dropped. Returns the start and end offset of each line, in pairs.
+    abstract int[] indexLines(char[] text, int length);
+
+    static TextHelpers get() {
+        return Holder.Instance;
+    }
+
+    private static class Holder {
+        static final TextHelpers Instance = choose();
+    }
+
+    private static TextHelpers choose() {
+        String kind = System.getProperty(PROPERTY, "");
+        if (kind.equals("java"))
+            return new JavaTextHelpers();
+
+        try {
+            System.loadLibrary("native-lib");
+        } catch (UnsatisfiedLinkError e) {
+            // No library on a plain JVM, unless it was asked for by name.
+            if (kind.equals("native"))
+                throw e;
+            return new JavaTextHelpers();
+        }
+        return new NativeTextHelpers();
+    }
+}
@@ -17,20 +17,12 @@
 // along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package net.alliedmods.stocks;
 
-import android.util.Log;
-
-import net.alliedmods.quotes.HttpCodeException;
-
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.lang.ref.WeakReference;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -62,49 +54,25 @@ public class UrlBuilder {
     }
 
     public static String downloadUrl(URL url, HashMap<String, String> headers) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-        final WeakReference<HttpURLConnection> con_ref =
-                new WeakReference<HttpURLConnection>(connection);
-        ICancelable cancel_task = new ICancelable() {
-            @Override
-            public void onCancel() {
-                HttpURLConnection con = con_ref.get();
-                if (con != null)
-                    con.disconnect();
-            }
-        };
-        IThread.addCancelTask(cancel_task);
+        return HttpClient.get(url, headers);
+    }
 
-        try {
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("charset", "utf-8");
-            for (HashMap.Entry<String, String> entry : headers.entrySet())
-                connection.setRequestProperty(entry.getKey(), entry.getValue());
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(10000);
-            connection.connect();
+    public static ByteBody downloadBody(URL url, HashMap<String, String> headers)
+            throws IOException
+    {
+        return HttpClient.getBody(url, headers);
+    }
 
-            if (connection.getResponseCode() != 200)
-                throw new HttpCodeException(connection.getResponseCode());
+    public static ByteBody downloadBody(URL url, HashMap<String, String> headers,
+                                        HashMap<String, String> validators) throws IOException
+    {
+        return HttpClient.getBody(url, headers, validators);
+    }
 
-            try (InputStreamReader is = new InputStreamReader(connection.getInputStream());
-                 BufferedReader br = new BufferedReader(is))
-            {
-                StringBuilder sb = new StringBuilder();
-                char buffer[] = new char[4096];
-                for (; ; ) {
-                    int bytes_read = br.read(buffer, 0, buffer.length);
-                    if (bytes_read == -1)
-                        break;
-                    sb.append(buffer, 0, bytes_read);
-                }
-                return sb.toString();
-            }
-        } finally {
-            IThread.removeCancelTask(cancel_task);
-            connection.disconnect();
-        }
+    public static <T> T downloadUrl(URL url, HashMap<String, String> headers,
+                                    HttpClient.BodyReader<T> reader) throws IOException
+    {
+        return HttpClient.get(url, headers, reader);
     }
 
     public static JSONObject downloadUrlAsJson(URL url) throws IOException, JSONException {
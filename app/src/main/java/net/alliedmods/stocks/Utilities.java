@@ -21,11 +21,17 @@ import android.content.Context;
 import android.graphics.PorterDuff;
 import android.graphics.drawable.Drawable;
 import android.nfc.tech.IsoDep;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import androidx.core.content.ContextCompat;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.ParseException;
@@ -138,11 +144,35 @@ public class Utilities {
         return null;
     }
 
-    // This is a fast and dirty utf-8 decoder since String(byte[]) is incredibly slow, and blocks
-    // the IexCloud reference data download for almost 20 seconds.
-    public native static String fastDecodeUtf8(byte[] buffer);
+    public static JsonReader newJsonReader(InputStream is) {
+        return new JsonReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+    }
+
+    // Reads a string, number, boolean or null value. Numbers come back exactly as they were
+    // written in the response, rather than being rounded through a double.
+    public static String nextJsonString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN)
+            return Boolean.toString(reader.nextBoolean());
+        return reader.nextString();
+    }
 
-    // Same; this replaces the very slow String.split() since the IexCloud reference data is so
-    // large.
-    public native static String[] fastSplitLines(String text);
+    // Same as nextJsonString, but for prices: exponents are expanded to plain decimal notation.
+    public static String nextJsonDecimal(JsonReader reader) throws IOException {
+        String text = nextJsonString(reader);
+        if (text != null && (text.indexOf('e') >= 0 || text.indexOf('E') >= 0))
+            return new BigDecimal(text).toPlainString();
+        return text;
+    }
+
+    // This is a fast utf-8 decoder since String(byte[]) is incredibly slow, and blocks the
+    // IexCloud reference data download for almost 20 seconds. See TextHelpers. To split the
+    // result into lines, use LineIndex instead.
+    public static String fastDecodeUtf8(byte[] buffer) {
+        return TextHelpers.get().decodeUtf8(buffer);
+    }
 }
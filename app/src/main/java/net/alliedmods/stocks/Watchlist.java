@@ -0,0 +1,93 @@
+// vim: set sts=4 sw=4 tw=99 et:
+//
+// Copyright (C) 2019 AlliedModders LLC
+// Copyright (C) 2019 David Anderson
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+package net.alliedmods.stocks;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+
+// A named list of symbols, stored as a text file with one symbol per line. The file isn't read
+// until the list is first used, so lists the user never opens cost nothing at startup.
+//
+// Settings owns these and serializes access to them.
+public class Watchlist {
+    private static final String TAG = "Watchlist";
+
+    private int id_;
+    private String name_;
+    private File file_;
+    private List<String> defaults_;
+    private SymbolRegistry symbols_;
+
+    Watchlist(int id, String name, File file, List<String> defaults) {
+        id_ = id;
+        name_ = name;
+        file_ = file;
+        defaults_ = defaults;
+    }
+
+    public int getId() {
+        return id_;
+    }
+
+    public String getName() {
+        return name_;
+    }
+
+    File getFile() {
+        return file_;
+    }
+
+    boolean isLoaded() {
+        return symbols_ != null;
+    }
+
+    SymbolRegistry getSymbols() {
+        if (symbols_ == null)
+            symbols_ = new SymbolRegistry(read());
+        return symbols_;
+    }
+
+    private List<String> read() {
+        try {
+            List<String> symbols = new ArrayList<String>();
+            for (String line : Files.readAllLines(file_.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.isEmpty())
+                    symbols.add(line);
+            }
+            return symbols;
+        } catch (NoSuchFileException e) {
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load watchlist " + name_ + ": " + e.getMessage());
+        }
+        return new ArrayList<String>(defaults_);
+    }
+
+    static void write(File file, List<String> symbols) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), symbols, StandardCharsets.UTF_8);
+        if (!temp.renameTo(file))
+            throw new IOException("Could not replace " + file.getName());
+    }
+}